@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.benchmark;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.DavLocatorFactory;
+import org.apache.jackrabbit.webdav.DavResourceIterator;
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.simple.LocatorFactoryImpl;
+import org.apache.jackrabbit.webdav.simple.ResourceConfig;
+import org.apache.jackrabbit.webdav.xml.DomUtil;
+import org.apache.tika.detect.DefaultDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+
+import com.trendmicro.hdfs.webdav.HDFSLockManager;
+import com.trendmicro.hdfs.webdav.HDFSResource;
+import com.trendmicro.hdfs.webdav.HDFSResourceFactory;
+
+/**
+ * Hot paths of {@link HDFSResource} against a {@link SyntheticFileSystem},
+ * so only the gateway's own work is measured: resource construction, href
+ * computation, property population, member enumeration and multistatus
+ * serialization, the latter two for directories of 10 to 1M entries.
+ * <p>
+ * Run a subset with e.g.
+ * <code>java -jar target/benchmarks.jar ResourceBenchmark.members
+ * -p entries=10,1000</code>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceBenchmark {
+
+  private static final String FILE = "/bench/entries-10/file-1";
+
+  /** Gateway objects shared by all benchmarks */
+  @State(Scope.Benchmark)
+  public static class Gateway {
+    Configuration conf;
+    HDFSLockManager lockManager;
+    HDFSResourceFactory factory;
+    DavLocatorFactory locatorFactory;
+
+    @Setup
+    public void setup() {
+      conf = new Configuration();
+      SyntheticFileSystem.configure(conf);
+      lockManager = new HDFSLockManager(conf);
+      factory = new HDFSResourceFactory(
+        new ResourceConfig(new DefaultDetector()), conf, lockManager, null);
+      locatorFactory = new LocatorFactoryImpl("");
+    }
+
+    @TearDown
+    public void tearDown() {
+      lockManager.close();
+    }
+
+    HDFSResource createResource(String path) throws Exception {
+      HDFSResource resource = (HDFSResource)factory.createResource(
+        locatorFactory.createResourceLocator("", path), null);
+      resource.setProxyUser(null);
+      return resource;
+    }
+  }
+
+  /** A directory of the given size */
+  @State(Scope.Benchmark)
+  public static class Directory {
+    @Param({ "10", "1000", "100000", "1000000" })
+    int entries;
+
+    HDFSResource resource;
+    Transformer transformer;
+    DavPropertyNameSet narrowProps;
+
+    @Setup(Level.Trial)
+    public void setup(Gateway gateway) throws Exception {
+      resource = gateway.createResource("/bench/entries-" + entries);
+      transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      narrowProps = new DavPropertyNameSet();
+      narrowProps.add(DavPropertyName.RESOURCETYPE);
+      narrowProps.add(DavPropertyName.GETCONTENTLENGTH);
+    }
+  }
+
+  /** Discards serialized output */
+  private static final OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) { }
+
+    @Override
+    public void write(byte[] b, int off, int len) { }
+  };
+
+  @Benchmark
+  public Object createResource(Gateway gateway) throws Exception {
+    return gateway.createResource(FILE);
+  }
+
+  @Benchmark
+  public String href(Gateway gateway) throws Exception {
+    return gateway.createResource(FILE).getHref();
+  }
+
+  @Benchmark
+  public Object properties(Gateway gateway) throws Exception {
+    // A fresh resource each time, properties are cached per instance
+    return gateway.createResource(FILE).getProperties();
+  }
+
+  @Benchmark
+  public void members(Directory dir, Blackhole bh) {
+    DavResourceIterator it = dir.resource.getMembers();
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  private static void serialize(Directory dir, MultiStatus ms)
+      throws Exception {
+    Document doc = DomUtil.createDocument();
+    doc.appendChild(ms.toXml(doc));
+    dir.transformer.transform(new DOMSource(doc),
+      new StreamResult(NULL_OUTPUT));
+  }
+
+  @Benchmark
+  public void propfindAllProps(Directory dir) throws Exception {
+    MultiStatus ms = new MultiStatus();
+    ms.addResourceProperties(dir.resource, null,
+      DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_1);
+    serialize(dir, ms);
+  }
+
+  @Benchmark
+  public void propfindNarrow(Directory dir) throws Exception {
+    MultiStatus ms = new MultiStatus();
+    ms.addResourceProperties(dir.resource, dir.narrowProps,
+      DavConstants.PROPFIND_BY_PROPERTY, DavConstants.DEPTH_1);
+    serialize(dir, ms);
+  }
+
+}
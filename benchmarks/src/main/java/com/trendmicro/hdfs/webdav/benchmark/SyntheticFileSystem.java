@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.benchmark;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Read only, in-memory file system whose namespace is computed rather than
+ * stored, so directories of any size cost nothing to set up and results
+ * are reproducible on any box.
+ * <p>
+ * A directory named <code>entries-N</code>, anywhere in the tree, holds N
+ * files named <code>file-0</code> to <code>file-(N-1)</code>. The root is
+ * an empty directory. Every file has the same length and times. File
+ * content is not modelled.
+ * <p>
+ * Register with <code>fs.synthetic.impl</code> and use
+ * <code>synthetic:///</code> as the default file system.
+ */
+public class SyntheticFileSystem extends FileSystem {
+
+  public static final String SCHEME = "synthetic";
+  public static final URI NAME = URI.create(SCHEME + ":///");
+
+  static final String DIR_PREFIX = "entries-";
+  static final String FILE_PREFIX = "file-";
+  static final long FILE_LENGTH = 4096;
+  static final long BLOCK_SIZE = 64 * 1024 * 1024;
+  static final long MTIME = 1330000000000L;
+
+  private static final FsPermission DIR_PERMISSION =
+    new FsPermission((short)0755);
+  private static final FsPermission FILE_PERMISSION =
+    new FsPermission((short)0644);
+
+  private Path workingDir = new Path("/");
+
+  /**
+   * Configure conf to use this file system by default
+   */
+  public static void configure(Configuration conf) {
+    conf.set("fs." + SCHEME + ".impl", SyntheticFileSystem.class.getName());
+    conf.set("fs.default.name", NAME.toString());
+  }
+
+  /**
+   * Return the number of entries of the directory at the path, or -1 if
+   * the path is not an entries directory
+   */
+  private static int getEntries(Path path) {
+    String name = path.getName();
+    if (!name.startsWith(DIR_PREFIX)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring(DIR_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static boolean isFile(Path path) {
+    Path parent = path.getParent();
+    String name = path.getName();
+    if (parent == null || !name.startsWith(FILE_PREFIX)) {
+      return false;
+    }
+    int entries = getEntries(parent);
+    try {
+      int i = Integer.parseInt(name.substring(FILE_PREFIX.length()));
+      return i >= 0 && i < entries;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private FileStatus dirStatus(Path path) {
+    return new FileStatus(0, true, 0, 0, MTIME, MTIME, DIR_PERMISSION,
+      "bench", "bench", path);
+  }
+
+  private FileStatus fileStatus(Path path) {
+    return new FileStatus(FILE_LENGTH, false, 3, BLOCK_SIZE, MTIME, MTIME,
+      FILE_PERMISSION, "bench", "bench", path);
+  }
+
+  private Path qualify(Path path) {
+    return makeQualified(path.isAbsolute() ? path :
+      new Path(workingDir, path));
+  }
+
+  @Override
+  public URI getUri() {
+    return NAME;
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    Path path = qualify(f);
+    if (path.getParent() == null || getEntries(path) >= 0) {
+      return dirStatus(path);
+    }
+    if (isFile(path)) {
+      return fileStatus(path);
+    }
+    throw new FileNotFoundException("File " + f + " does not exist.");
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path f) throws IOException {
+    Path path = qualify(f);
+    if (path.getParent() == null) {
+      return new FileStatus[0];
+    }
+    int entries = getEntries(path);
+    if (entries < 0) {
+      if (isFile(path)) {
+        return new FileStatus[] { fileStatus(path) };
+      }
+      return null;
+    }
+    FileStatus[] stat = new FileStatus[entries];
+    for (int i = 0; i < entries; i++) {
+      stat[i] = fileStatus(new Path(path, FILE_PREFIX + i));
+    }
+    return stat;
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    throw new IOException("Synthetic file content is not available");
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission,
+      boolean overwrite, int bufferSize, short replication, long blockSize,
+      Progressable progress) throws IOException {
+    throw new IOException("Synthetic file system is read only");
+  }
+
+  @Override
+  public FSDataOutputStream append(Path f, int bufferSize,
+      Progressable progress) throws IOException {
+    throw new IOException("Synthetic file system is read only");
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    throw new IOException("Synthetic file system is read only");
+  }
+
+  @Override
+  @Deprecated
+  public boolean delete(Path f) throws IOException {
+    return delete(f, true);
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    throw new IOException("Synthetic file system is read only");
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    throw new IOException("Synthetic file system is read only");
+  }
+
+  @Override
+  public void setWorkingDirectory(Path dir) {
+    workingDir = qualify(dir);
+  }
+
+  @Override
+  public Path getWorkingDirectory() {
+    return workingDir;
+  }
+
+}
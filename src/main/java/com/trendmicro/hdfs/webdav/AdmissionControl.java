@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.google.common.collect.MapMaker;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Limits the requests served at once, overall and per user, so a burst or
+ * a single busy client cannot tie up every server thread and the NameNode
+ * behind them. Requests over a limit wait in a bounded queue for a short
+ * time and are then turned away with 503 and Retry-After.
+ * <p>
+ * Anonymous requests are limited per remote address.
+ */
+public class AdmissionControl {
+
+  public static final String MAX_CONCURRENT_KEY =
+    "hadoop.webdav.admission.max.concurrent";
+  public static final int DEFAULT_MAX_CONCURRENT = 256;
+  public static final String MAX_CONCURRENT_PER_USER_KEY =
+    "hadoop.webdav.admission.max.concurrent.per.user";
+  public static final int DEFAULT_MAX_CONCURRENT_PER_USER = 32;
+  public static final String QUEUE_SIZE_KEY =
+    "hadoop.webdav.admission.queue.size";
+  public static final int DEFAULT_QUEUE_SIZE = 128;
+  public static final String QUEUE_TIMEOUT_KEY =
+    "hadoop.webdav.admission.queue.timeout.ms";
+  public static final long DEFAULT_QUEUE_TIMEOUT = 1000L;
+  public static final String RETRY_AFTER_KEY =
+    "hadoop.webdav.admission.retry.after.seconds";
+  public static final int DEFAULT_RETRY_AFTER = 1;
+
+  /**
+   * An admitted request, to be released when it completes
+   */
+  public class Permit {
+    private final Semaphore userPermits;
+
+    Permit(Semaphore userPermits) {
+      this.userPermits = userPermits;
+    }
+
+    public void release() {
+      inFlight.decrementAndGet();
+      if (permits != null) {
+        permits.release();
+      }
+      if (userPermits != null) {
+        userPermits.release();
+      }
+    }
+  }
+
+  private final int max;
+  private final Semaphore permits;
+  private final int perUser;
+  // Semaphores of users with no request in flight may be collected
+  private final ConcurrentMap<String, Semaphore> userPermits =
+    new MapMaker().weakValues().makeMap();
+  private final int queueSize;
+  private final long timeoutNanos;
+  private final String retryAfter;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Counter rejected =
+    Metrics.newCounter(AdmissionControl.class, "rejected");
+  private final Counter rejectedPerUser =
+    Metrics.newCounter(AdmissionControl.class, "rejected-per-user");
+  private final Timer queueWait = Metrics.newTimer(AdmissionControl.class,
+    "queue-wait", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+  public AdmissionControl(Configuration conf) {
+    max = conf.getInt(MAX_CONCURRENT_KEY, DEFAULT_MAX_CONCURRENT);
+    permits = max > 0 ? new Semaphore(max, true) : null;
+    perUser = conf.getInt(MAX_CONCURRENT_PER_USER_KEY,
+      DEFAULT_MAX_CONCURRENT_PER_USER);
+    queueSize = conf.getInt(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE);
+    timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+      conf.getLong(QUEUE_TIMEOUT_KEY, DEFAULT_QUEUE_TIMEOUT));
+    retryAfter = String.valueOf(conf.getInt(RETRY_AFTER_KEY,
+      DEFAULT_RETRY_AFTER));
+    Metrics.newGauge(AdmissionControl.class, "in-flight", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return inFlight.get();
+      }
+    });
+    Metrics.newGauge(AdmissionControl.class, "queued", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return queued.get();
+      }
+    });
+  }
+
+  /**
+   * Most requests admitted at once, or -1 if there is no limit
+   */
+  public int getMaxConcurrent() {
+    return max > 0 ? max : -1;
+  }
+
+  /**
+   * Most requests waiting for admission at once. Each holds a server
+   * thread while it waits.
+   */
+  public int getQueueSize() {
+    return Math.max(0, queueSize);
+  }
+
+  private Semaphore getUserPermits(String user) {
+    if (perUser <= 0) {
+      return null;
+    }
+    Semaphore s = userPermits.get(user);
+    if (s == null) {
+      s = new Semaphore(perUser, true);
+      Semaphore existing = userPermits.putIfAbsent(user, s);
+      if (existing != null) {
+        s = existing;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Take a permit, queueing until the deadline if there is room in the
+   * queue
+   */
+  private boolean acquire(Semaphore s, long deadline)
+      throws InterruptedException {
+    if (s.tryAcquire()) {
+      return true;
+    }
+    if (queued.incrementAndGet() > queueSize) {
+      queued.decrementAndGet();
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      return s.tryAcquire(deadline - start, TimeUnit.NANOSECONDS);
+    } finally {
+      queued.decrementAndGet();
+      queueWait.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Admit a request of the user, or return null if it must be turned away
+   */
+  public Permit acquire(String user) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    Semaphore forUser = getUserPermits(user);
+    // Wait for the user's own limit first, so a client over its limit does
+    // not hold a global permit while it waits
+    if (forUser != null && !acquire(forUser, deadline)) {
+      rejectedPerUser.inc();
+      return null;
+    }
+    if (permits != null && !acquire(permits, deadline)) {
+      if (forUser != null) {
+        forUser.release();
+      }
+      rejected.inc();
+      return null;
+    }
+    inFlight.incrementAndGet();
+    return new Permit(forUser);
+  }
+
+  /**
+   * Turn a request away, telling the client when to try again
+   */
+  public void reject(HttpServletResponse response) throws IOException {
+    response.setHeader("Retry-After", retryAfter);
+    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+      "Too many requests, try again later");
+  }
+
+}
@@ -18,18 +18,42 @@
 
 package com.trendmicro.hdfs.webdav;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.authentication.client.AuthenticatedURL;
 import org.apache.hadoop.security.authentication.server.AuthenticationFilter;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+
 public class AuthFilter extends AuthenticationFilter {
 
   private static final String CONF_PREFIX = "hadoop.webdav.authentication.";
+
+  /**
+   * Request attribute holding the nanoseconds spent authenticating
+   */
+  public static final String AUTH_NANOS_ATTRIBUTE = "hadoop.webdav.auth.nanos";
   private Configuration conf;
+  // Time to authenticate, by whether a token or a handshake was used
+  private final Timer tokenAuth = Metrics.newTimer(AuthFilter.class,
+    "authentication", "token", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+  private final Timer handshakeAuth = Metrics.newTimer(AuthFilter.class,
+    "authentication", "handshake", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+  private final Timer challengedAuth = Metrics.newTimer(AuthFilter.class,
+    "authentication", "challenged", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
 
   public AuthFilter(Configuration conf) {
     this.conf = conf;
@@ -55,4 +79,43 @@ public class AuthFilter extends AuthenticationFilter {
     return props;
   }
 
+  /**
+   * Return true if the request carries an auth token cookie, which spares
+   * it a full authentication handshake if valid
+   */
+  private static boolean hasToken(ServletRequest request) {
+    Cookie[] cookies = ((HttpServletRequest)request).getCookies();
+    if (cookies != null) {
+      for (Cookie cookie: cookies) {
+        if (AuthenticatedURL.AUTH_COOKIE.equals(cookie.getName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response,
+      final FilterChain filterChain) throws IOException, ServletException {
+    final long start = System.nanoTime();
+    final boolean token = hasToken(request);
+    final boolean[] authenticated = new boolean[1];
+    super.doFilter(request, response, new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        long elapsed = System.nanoTime() - start;
+        authenticated[0] = true;
+        (token ? tokenAuth : handshakeAuth).update(elapsed,
+          TimeUnit.NANOSECONDS);
+        request.setAttribute(AUTH_NANOS_ATTRIBUTE, elapsed);
+        filterChain.doFilter(request, response);
+      }
+    });
+    if (!authenticated[0]) {
+      // Challenged or refused
+      challengedAuth.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
 }
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Splits the server threads between data transfers and metadata requests,
+ * so long running GETs and PUTs cannot take every thread and stall
+ * browsing. Each partition has its own limit on requests in flight and its
+ * own bounded queue, and requests that cannot get into their partition in
+ * time are turned away with 503.
+ * <p>
+ * The partitions count requests, not threads. A queued request waits on
+ * the server thread that is serving it, so the isolation only holds while
+ * the thread pool is large enough for both partitions and their queues,
+ * which is why the gateway grows the pool to hold them, together with the
+ * requests waiting in {@link AdmissionControl} ahead of the bulkhead. With
+ * an unbounded partition, or a virtual thread per request, no such bound
+ * exists.
+ */
+public class Bulkhead {
+
+  public static final String TRANSFER_METHODS_KEY =
+    "hadoop.webdav.bulkhead.transfer.methods";
+  public static final String DEFAULT_TRANSFER_METHODS = "GET,PUT,POST,COPY";
+  public static final String PREFIX = "hadoop.webdav.bulkhead.";
+  public static final String MAX_CONCURRENT_SUFFIX = ".max.concurrent";
+  public static final String QUEUE_SIZE_SUFFIX = ".queue.size";
+  public static final String QUEUE_TIMEOUT_SUFFIX = ".queue.timeout.ms";
+
+  /**
+   * A share of the server threads, with its own saturation metrics
+   */
+  public static class Partition {
+    private final String name;
+    private final int max;
+    private final Semaphore permits;
+    private final int queueSize;
+    private final long timeoutNanos;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter rejected;
+    private final Timer queueWait;
+
+    Partition(Configuration conf, String name, int defaultMax,
+        int defaultQueueSize) {
+      this.name = name;
+      this.max = conf.getInt(PREFIX + name + MAX_CONCURRENT_SUFFIX,
+        defaultMax);
+      this.permits = max > 0 ? new Semaphore(max, true) : null;
+      this.queueSize = conf.getInt(PREFIX + name + QUEUE_SIZE_SUFFIX,
+        defaultQueueSize);
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+        conf.getLong(PREFIX + name + QUEUE_TIMEOUT_SUFFIX, 1000L));
+      rejected = Metrics.newCounter(Bulkhead.class, "rejected", name);
+      queueWait = Metrics.newTimer(Bulkhead.class, "queue-wait", name,
+        TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      Metrics.newGauge(Bulkhead.class, "active", name, new Gauge<Integer>() {
+        @Override
+        public Integer value() {
+          return active.get();
+        }
+      });
+      Metrics.newGauge(Bulkhead.class, "queued", name, new Gauge<Integer>() {
+        @Override
+        public Integer value() {
+          return queued.get();
+        }
+      });
+      Metrics.newGauge(Bulkhead.class, "saturation", name,
+          new Gauge<Double>() {
+        @Override
+        public Double value() {
+          return max > 0 ? (double)active.get() / max : 0.0;
+        }
+      });
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Most threads this partition may hold, counting queued requests, or
+     * -1 if it is unbounded
+     */
+    public int getCapacity() {
+      return max > 0 ? max + Math.max(0, queueSize) : -1;
+    }
+
+    /**
+     * Enter the partition, queueing for a while if it is full. Returns
+     * false if the request must be turned away.
+     */
+    public boolean acquire() throws InterruptedException {
+      if (permits != null && !permits.tryAcquire()) {
+        if (queued.incrementAndGet() > queueSize) {
+          queued.decrementAndGet();
+          rejected.inc();
+          return false;
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+          acquired = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } finally {
+          queued.decrementAndGet();
+          queueWait.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (!acquired) {
+          rejected.inc();
+          return false;
+        }
+      }
+      active.incrementAndGet();
+      return true;
+    }
+
+    public void release() {
+      active.decrementAndGet();
+      if (permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  private final Set<String> transferMethods = new HashSet<String>();
+  private final Partition transfer;
+  private final Partition metadata;
+
+  public Bulkhead(Configuration conf) {
+    for (String method: conf.getStrings(TRANSFER_METHODS_KEY,
+        DEFAULT_TRANSFER_METHODS)) {
+      transferMethods.add(method.trim().toUpperCase());
+    }
+    transfer = new Partition(conf, "transfer", 128, 32);
+    metadata = new Partition(conf, "metadata", 64, 64);
+  }
+
+  /**
+   * Return the partition serving the given method
+   */
+  public Partition getPartition(String method) {
+    return transferMethods.contains(method.toUpperCase()) ? transfer :
+      metadata;
+  }
+
+  /**
+   * Most server threads the partitions may hold together, or -1 if any is
+   * unbounded
+   */
+  public int getCapacity() {
+    if (transfer.getCapacity() < 0 || metadata.getCapacity() < 0) {
+      return -1;
+    }
+    return transfer.getCapacity() + metadata.getCapacity();
+  }
+
+}
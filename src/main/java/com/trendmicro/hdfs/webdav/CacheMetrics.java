@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Hit and miss counters for one of the gateway's caches, with a gauge for
+ * the hit ratio since startup
+ */
+public class CacheMetrics {
+
+  private final Counter hits;
+  private final Counter misses;
+
+  public CacheMetrics(Class<?> owner, String cache) {
+    hits = Metrics.newCounter(owner, cache + "-hits");
+    misses = Metrics.newCounter(owner, cache + "-misses");
+    Metrics.newGauge(owner, cache + "-hit-ratio", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        long h = hits.count();
+        long total = h + misses.count();
+        return total > 0 ? (double)h / total : Double.NaN;
+      }
+    });
+  }
+
+  public void hit() {
+    hits.inc();
+  }
+
+  public void miss() {
+    misses.inc();
+  }
+
+}
@@ -0,0 +1,490 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.property.DavProperty;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DefaultDavProperty;
+import org.apache.jackrabbit.webdav.xml.DomUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Persistent store for dead properties, the ones set by clients with
+ * PROPPATCH.
+ * <p>
+ * The properties of every entry in a directory are kept together in one
+ * sidecar file in that directory, so listing the properties of all members
+ * of a collection costs one extra read for the whole collection. The
+ * properties of a collection itself live in its parent's sidecar, and those
+ * of the root in its own under the empty name. Because the sidecar lives
+ * inside the directory it follows the directory through MOVE and COPY.
+ * <p>
+ * Sidecars are cached by directory. A cached sidecar is only served to
+ * users who have been seen to read or write it, others read it once
+ * themselves first, so the cache never shows properties to a user the
+ * file system would not. An update is written before the request
+ * making it completes, as the user making it, and only then becomes
+ * visible, so a change that cannot be written fails its own request and
+ * nobody else's. Updates to one directory are serialized within a gateway;
+ * concurrent updates through different gateways are last writer wins.
+ */
+public class DeadPropertyStore {
+
+  private static final Log LOG = LogFactory.getLog(DeadPropertyStore.class);
+
+  public static final String SIDECAR_NAME = ".webdav.properties";
+
+  public static final String CACHE_SIZE_KEY =
+    "hadoop.webdav.properties.cache.size";
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final String CACHE_TTL_KEY =
+    "hadoop.webdav.properties.cache.ttl.ms";
+  public static final long DEFAULT_CACHE_TTL = 30000L;
+
+  private static final int VERSION = 1;
+  private static final int WRITE_STRIPES = 64;
+
+  private static final DocumentBuilderFactory BUILDER_FACTORY =
+    DocumentBuilderFactory.newInstance();
+  static {
+    BUILDER_FACTORY.setNamespaceAware(true);
+  }
+  private static final TransformerFactory TRANSFORMER_FACTORY =
+    TransformerFactory.newInstance();
+
+  /**
+   * The dead properties of all entries of one directory, keyed by entry
+   * name. Never changed once cached, an update caches a new one.
+   */
+  private static class Sidecar {
+    final String dir;
+    final Map<String, Map<DavPropertyName, DavProperty<?>>> entries;
+    // Users known to be allowed to read the sidecar
+    final Set<String> readers =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    Sidecar(String dir) {
+      this(dir, new HashMap<String, Map<DavPropertyName, DavProperty<?>>>());
+    }
+
+    Sidecar(String dir,
+        Map<String, Map<DavPropertyName, DavProperty<?>>> entries) {
+      this.dir = dir;
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * A change to the entries of a sidecar
+   */
+  private interface Change {
+    /**
+     * Apply the change to a copy of the entries. Inner maps must be copied
+     * before they are changed. Returns false if nothing changed.
+     */
+    boolean apply(Map<String, Map<DavPropertyName, DavProperty<?>>> entries);
+  }
+
+  private final Configuration conf;
+  private final NameNodeThrottle throttle;
+  private final ConcurrentMap<String, Sidecar> cache;
+  private final CacheMetrics cacheMetrics =
+    new CacheMetrics(DeadPropertyStore.class, "cache");
+  private final ReentrantLock[] writeStripes =
+    new ReentrantLock[WRITE_STRIPES];
+
+  public DeadPropertyStore(Configuration conf, NameNodeThrottle throttle) {
+    this.conf = conf;
+    this.throttle = throttle;
+    cache = new MapMaker()
+      .maximumSize(conf.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE))
+      .expireAfterWrite(conf.getLong(CACHE_TTL_KEY, DEFAULT_CACHE_TTL),
+        TimeUnit.MILLISECONDS)
+      .makeMap();
+    for (int i = 0; i < WRITE_STRIPES; i++) {
+      writeStripes[i] = new ReentrantLock();
+    }
+  }
+
+  public static boolean isSidecar(Path path) {
+    return SIDECAR_NAME.equals(path.getName());
+  }
+
+  private static String getDir(Path path) {
+    Path parent = path.getParent();
+    return (parent != null ? parent : path).toUri().getPath();
+  }
+
+  private static String getEntry(Path path) {
+    return path.getParent() != null ? path.getName() : "";
+  }
+
+  private static String toXml(DavProperty<?> property) throws IOException {
+    try {
+      Document doc = DomUtil.createDocument();
+      Element element = property.toXml(doc);
+      Transformer transformer = TRANSFORMER_FACTORY.newTransformer();
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      StringWriter writer = new StringWriter();
+      transformer.transform(new DOMSource(element), new StreamResult(writer));
+      return writer.toString();
+    } catch (Exception e) {
+      throw new IOException("Unable to serialize property " +
+        property.getName(), e);
+    }
+  }
+
+  private static DavProperty<?> fromXml(String xml) throws IOException {
+    try {
+      Document doc = BUILDER_FACTORY.newDocumentBuilder()
+        .parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+      return DefaultDavProperty.createFromXml(doc.getDocumentElement());
+    } catch (Exception e) {
+      throw new IOException("Unable to parse stored property", e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  private Sidecar read(final UserGroupInformation user, final String dir)
+      throws IOException {
+    final Path file = new Path(dir, SIDECAR_NAME);
+    final Sidecar sidecar = new Sidecar(dir);
+    try {
+      user.doAs(new PrivilegedExceptionAction<Void>() {
+        public Void run() throws Exception {
+          FileSystem fs = InstrumentedFileSystem.get(conf, throttle);
+          DataInputStream in;
+          try {
+            in = fs.open(file);
+          } catch (FileNotFoundException e) {
+            return null;
+          } catch (IOException e) {
+            // Some clients report a missing file as a plain IOException
+            if (!fs.exists(file)) {
+              return null;
+            }
+            throw e;
+          }
+          try {
+            if (in.readInt() != VERSION) {
+              throw new IOException("Unknown property file version in " +
+                file);
+            }
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+              String name = readString(in);
+              int count = in.readInt();
+              Map<DavPropertyName, DavProperty<?>> props =
+                new HashMap<DavPropertyName, DavProperty<?>>(count * 2);
+              for (int j = 0; j < count; j++) {
+                DavProperty<?> prop = fromXml(readString(in));
+                props.put(prop.getName(), prop);
+              }
+              sidecar.entries.put(name, props);
+            }
+          } finally {
+            in.close();
+          }
+          return null;
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    return sidecar;
+  }
+
+  private void write(final UserGroupInformation user, final String dir,
+      final Map<String, Map<DavPropertyName, DavProperty<?>>> entries)
+      throws IOException {
+    final Path file = new Path(dir, SIDECAR_NAME);
+    try {
+      user.doAs(new PrivilegedExceptionAction<Void>() {
+        public Void run() throws Exception {
+          FileSystem fs = InstrumentedFileSystem.get(conf, throttle);
+          if (entries.isEmpty()) {
+            fs.delete(file, false);
+            return null;
+          }
+          DataOutputStream out = fs.create(file, true);
+          try {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Map<DavPropertyName, DavProperty<?>>> e:
+                entries.entrySet()) {
+              writeString(out, e.getKey());
+              out.writeInt(e.getValue().size());
+              for (DavProperty<?> prop: e.getValue().values()) {
+                writeString(out, toXml(prop));
+              }
+            }
+          } finally {
+            out.close();
+          }
+          return null;
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private Sidecar load(UserGroupInformation user, String dir)
+      throws IOException {
+    String name = user.getUserName();
+    Sidecar cached = cache.get(dir);
+    if (cached != null && cached.readers.contains(name)) {
+      cacheMetrics.hit();
+      return cached;
+    }
+    cacheMetrics.miss();
+    // Fails if the user may not read the sidecar
+    Sidecar sidecar = read(user, dir);
+    sidecar.readers.add(name);
+    Sidecar existing = cached != null ? cached :
+      cache.putIfAbsent(dir, sidecar);
+    if (existing != null) {
+      existing.readers.add(name);
+      return existing;
+    }
+    return sidecar;
+  }
+
+  /**
+   * Apply a change to a copy of the directory's sidecar, write it as the
+   * user, and only once written cache it for readers. Writers of one
+   * directory are serialized, so none of them works from a stale copy.
+   */
+  private void commit(UserGroupInformation user, String dir, Change change)
+      throws IOException {
+    ReentrantLock stripe =
+      writeStripes[(dir.hashCode() & 0x7fffffff) % WRITE_STRIPES];
+    stripe.lock();
+    try {
+      Map<String, Map<DavPropertyName, DavProperty<?>>> entries =
+        new HashMap<String, Map<DavPropertyName, DavProperty<?>>>(
+          load(user, dir).entries);
+      if (!change.apply(entries)) {
+        return;
+      }
+      try {
+        write(user, dir, entries);
+      } catch (IOException e) {
+        // What is on disk is no longer known
+        cache.remove(dir);
+        throw e;
+      }
+      Sidecar sidecar = new Sidecar(dir, entries);
+      sidecar.readers.add(user.getUserName());
+      cache.put(dir, sidecar);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Forget the cached sidecars of a directory and everything below it,
+   * after it was deleted or moved away
+   */
+  private void evict(String dir) {
+    String prefix = "/".equals(dir) ? "/" : dir + "/";
+    Iterator<String> it = cache.keySet().iterator();
+    while (it.hasNext()) {
+      String key = it.next();
+      if (key.equals(dir) || key.startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Record that a listing of the directory by the user showed no sidecar,
+   * so the properties of its entries are served without trying to open one
+   */
+  public void setNoSidecar(UserGroupInformation user, Path dir) {
+    String key = dir.toUri().getPath();
+    Sidecar sidecar = new Sidecar(key);
+    sidecar.readers.add(user.getUserName());
+    cache.putIfAbsent(key, sidecar);
+  }
+
+  /**
+   * Return the dead properties of a resource, or an empty map if there are
+   * none or they cannot be read by the user. Any other failure to read
+   * them, including a throttled NameNode call, fails the request rather
+   * than answer without them.
+   */
+  public Map<DavPropertyName, DavProperty<?>> getProperties(
+      UserGroupInformation user, Path path) {
+    Sidecar sidecar;
+    try {
+      sidecar = load(user, getDir(path));
+    } catch (AccessControlException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Unable to read properties for '" + path + "'", e);
+      }
+      return Collections.emptyMap();
+    } catch (FileNotFoundException e) {
+      return Collections.emptyMap();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Map<DavPropertyName, DavProperty<?>> props =
+      sidecar.entries.get(getEntry(path));
+    if (props == null || props.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(props);
+  }
+
+  /**
+   * Set and remove dead properties of a resource
+   */
+  public void update(UserGroupInformation user, Path path,
+      final List<DavProperty<?>> set, final List<DavPropertyName> remove)
+      throws IOException {
+    final String entry = getEntry(path);
+    commit(user, getDir(path), new Change() {
+      public boolean apply(
+          Map<String, Map<DavPropertyName, DavProperty<?>>> entries) {
+        Map<DavPropertyName, DavProperty<?>> props = entries.get(entry);
+        props = props != null ?
+          new HashMap<DavPropertyName, DavProperty<?>>(props) :
+          new HashMap<DavPropertyName, DavProperty<?>>();
+        for (DavPropertyName name: remove) {
+          props.remove(name);
+        }
+        for (DavProperty<?> prop: set) {
+          props.put(prop.getName(), prop);
+        }
+        if (props.isEmpty()) {
+          return entries.remove(entry) != null;
+        }
+        entries.put(entry, props);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Forget the dead properties of a deleted resource
+   */
+  public void remove(UserGroupInformation user, Path path) throws IOException {
+    // Sidecars inside a deleted collection went with it
+    evict(path.toUri().getPath());
+    removeEntry(user, path);
+  }
+
+  private void removeEntry(UserGroupInformation user, Path path)
+      throws IOException {
+    final String entry = getEntry(path);
+    commit(user, getDir(path), new Change() {
+      public boolean apply(
+          Map<String, Map<DavPropertyName, DavProperty<?>>> entries) {
+        return entries.remove(entry) != null;
+      }
+    });
+  }
+
+  /**
+   * Carry the dead properties of a resource over to a copy of it, and
+   * optionally remove them from the source, for MOVE
+   */
+  public void copy(UserGroupInformation user, Path src, Path dst,
+      boolean removeSource) throws IOException {
+    if (removeSource) {
+      evict(src.toUri().getPath());
+    }
+    // Sidecars below the destination were replaced
+    evict(dst.toUri().getPath());
+    Map<String, Map<DavPropertyName, DavProperty<?>>> srcEntries =
+      load(user, getDir(src)).entries;
+    final Map<DavPropertyName, DavProperty<?>> props =
+      srcEntries.get(getEntry(src));
+    final String dstEntry = getEntry(dst);
+    // Written to the destination first, so a failure part way leaves the
+    // properties in both places rather than in neither
+    commit(user, getDir(dst), new Change() {
+      public boolean apply(
+          Map<String, Map<DavPropertyName, DavProperty<?>>> entries) {
+        if (props != null) {
+          entries.put(dstEntry, props);
+          return true;
+        }
+        // Nothing to carry over, only what was overwritten to drop
+        return entries.remove(dstEntry) != null;
+      }
+    });
+    if (props != null && removeSource) {
+      removeEntry(user, src);
+    }
+  }
+
+  public void close() {
+    cache.clear();
+  }
+
+}
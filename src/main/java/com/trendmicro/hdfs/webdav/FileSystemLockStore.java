@@ -0,0 +1,492 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Lock store shared by every gateway pointed at the same directory, which
+ * may be in HDFS or, for a single host, on local disk.
+ * <p>
+ * Each lock is a small file at the mirrored location of the locked path
+ * under the store directory. Mirrored path components carry a '_' prefix so
+ * they can never collide with the lock file names. Lock files are numbered
+ * by generation, and the highest generation present is the current one. A
+ * lock is taken, or an expired one replaced, or a live one refreshed, by
+ * creating the next generation without overwrite, and released by creating
+ * the next generation as an already expired tombstone. Generations of a
+ * path therefore only grow, and tombstones are left in place. A gateway
+ * working from a stale view may still create a generation that was
+ * already superseded and cleaned up, so after every create the directory
+ * is listed again and the new generation only counts if it is the highest.
+ * Otherwise it is deleted and the operation fails.
+ * <p>
+ * Conflicts between an ancestor and a descendant are checked again once
+ * the lock file exists. Of two gateways locking an ancestor and a
+ * descendant at the same instant at least one sees the other's file and
+ * backs out, possibly both.
+ * <p>
+ * A lock file that cannot be read in full is taken to be still being
+ * written, and so held, until a minute after it was created.
+ * <p>
+ * Lookups are read through a local cache. A cached answer, including "not
+ * locked", is trusted for the lease period, so on the common path a gateway
+ * validates a lock token without going to the file system. A lock released
+ * or taken through another gateway may therefore be seen late by up to one
+ * lease. Lock files past their expiry are ignored and replaced on demand.
+ */
+public class FileSystemLockStore implements LockStore {
+
+  private static final Log LOG = LogFactory.getLog(FileSystemLockStore.class);
+
+  public static final String DIR_KEY = "hadoop.webdav.lock.store.dir";
+  public static final String DEFAULT_DIR = "/tmp/hadoop-webdav/locks";
+  public static final String LEASE_KEY = "hadoop.webdav.lock.store.lease.ms";
+  public static final long DEFAULT_LEASE = 5000L;
+  public static final String CACHE_SIZE_KEY =
+    "hadoop.webdav.lock.store.cache.size";
+  public static final int DEFAULT_CACHE_SIZE = 100000;
+
+  private static final String LOCK_FILE_PREFIX = "lock.";
+  private static final String COMPONENT_PREFIX = "_";
+  private static final int VERSION = 1;
+  private static final long INCOMPLETE_GRACE = 60000L;
+
+  /** Cached lookup result, lock may be null for "not locked" */
+  private static class Lease {
+    final PathLock lock;
+    final long validUntil;
+
+    Lease(PathLock lock, long validUntil) {
+      this.lock = lock;
+      this.validUntil = validUntil;
+    }
+  }
+
+  /** The current generation of a path's lock file and what it holds */
+  private static class Current {
+    // 0 if there is no lock file
+    final long generation;
+    // null if there is no lock file or it has expired
+    final PathLock lock;
+
+    Current(long generation, PathLock lock) {
+      this.generation = generation;
+      this.lock = lock;
+    }
+  }
+
+  private final FileSystem fs;
+  private final Path dir;
+  private final long lease;
+  private final ConcurrentMap<String, Lease> cache;
+  private final CacheMetrics cacheMetrics =
+    new CacheMetrics(FileSystemLockStore.class, "cache");
+
+  public FileSystemLockStore(Configuration conf) throws IOException {
+    dir = new Path(conf.get(DIR_KEY, DEFAULT_DIR));
+    fs = dir.getFileSystem(conf);
+    fs.mkdirs(dir);
+    lease = conf.getLong(LEASE_KEY, DEFAULT_LEASE);
+    cache = new MapMaker()
+      .maximumSize(conf.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE))
+      .expireAfterWrite(lease, TimeUnit.MILLISECONDS)
+      .makeMap();
+    LOG.info("Keeping locks in " + fs.makeQualified(dir) + ", lease " +
+      lease + " ms");
+  }
+
+  private Path getMirrorDir(String path) {
+    if ("/".equals(path)) {
+      return dir;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String component: path.substring(1).split("/")) {
+      sb.append('/').append(COMPONENT_PREFIX).append(component);
+    }
+    return new Path(dir.toString() + sb.toString());
+  }
+
+  private static Path getLockFile(Path mirror, long generation) {
+    return new Path(mirror, LOCK_FILE_PREFIX + generation);
+  }
+
+  /**
+   * Return the generation of a lock file name, or -1 if it is not one
+   */
+  private static long getGeneration(String name) {
+    if (!name.startsWith(LOCK_FILE_PREFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(LOCK_FILE_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private FileStatus[] list(Path mirror) throws IOException {
+    try {
+      return fs.listStatus(mirror);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  private PathLock read(String path, FileStatus file) throws IOException {
+    FSDataInputStream in;
+    try {
+      in = fs.open(file.getPath());
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      if (in.readInt() != VERSION) {
+        throw new IOException("Unknown lock file version in " +
+          file.getPath());
+      }
+      String token = in.readUTF();
+      String owner = in.readUTF();
+      boolean deep = in.readBoolean();
+      long expires = in.readLong();
+      return new PathLock(path, token, owner.length() > 0 ? owner : null,
+        deep, expires);
+    } catch (EOFException e) {
+      // Still being written by the gateway that created it. Its token is
+      // not known yet, so it matches none, and it is taken as deep to be
+      // safe.
+      return new PathLock(path, "", null, true,
+        file.getModificationTime() + INCOMPLETE_GRACE);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read the current generation of the lock files in a mirror directory.
+   * Superseded generations found along the way are left for the holder of
+   * the current one to delete.
+   */
+  private Current readCurrent(String path, Path mirror) throws IOException {
+    FileStatus[] children = list(mirror);
+    FileStatus latest = null;
+    long generation = 0;
+    if (children != null) {
+      for (FileStatus child: children) {
+        long g = getGeneration(child.getPath().getName());
+        if (g > generation) {
+          generation = g;
+          latest = child;
+        }
+      }
+    }
+    if (latest == null) {
+      return new Current(0, null);
+    }
+    PathLock lock = read(path, latest);
+    if (lock != null && lock.isExpired()) {
+      lock = null;
+    }
+    return new Current(generation, lock);
+  }
+
+  /**
+   * Create the given generation of a lock file. Returns false if it
+   * already exists, that is another gateway got there first.
+   */
+  private boolean create(PathLock lock, Path mirror, long generation)
+      throws IOException {
+    Path file = getLockFile(mirror, generation);
+    FSDataOutputStream out;
+    try {
+      out = fs.create(file, false);
+    } catch (IOException e) {
+      if (fs.exists(file)) {
+        return false;
+      }
+      throw e;
+    }
+    try {
+      out.writeInt(VERSION);
+      out.writeUTF(lock.getToken());
+      out.writeUTF(lock.getOwner() != null ? lock.getOwner() : "");
+      out.writeBoolean(lock.isDeep());
+      out.writeLong(lock.getExpires());
+    } finally {
+      out.close();
+    }
+    return true;
+  }
+
+  /**
+   * Return true if no generation above the given one exists in the mirror
+   * directory
+   */
+  private boolean isHighest(Path mirror, long generation) throws IOException {
+    FileStatus[] children = list(mirror);
+    if (children != null) {
+      for (FileStatus child: children) {
+        if (getGeneration(child.getPath().getName()) > generation) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Create the next generation of a lock file and check it is the current
+   * one. Returns false, having deleted it again, if it is not.
+   */
+  private boolean claim(PathLock lock, Path mirror, long generation)
+      throws IOException {
+    if (!create(lock, mirror, generation)) {
+      return false;
+    }
+    if (!isHighest(mirror, generation)) {
+      fs.delete(getLockFile(mirror, generation), false);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Release a generation by superseding it with an expired tombstone.
+   * Returns false if another generation superseded it first.
+   */
+  private boolean release(String path, Path mirror, long generation)
+      throws IOException {
+    PathLock tombstone = new PathLock(path, "", null, false, 0);
+    if (!claim(tombstone, mirror, generation + 1)) {
+      return false;
+    }
+    deleteOlder(mirror, generation + 1);
+    return true;
+  }
+
+  /**
+   * Delete generations of the lock files below the given one, best effort
+   */
+  private void deleteOlder(Path mirror, long generation) {
+    try {
+      FileStatus[] children = list(mirror);
+      if (children == null) {
+        return;
+      }
+      for (FileStatus child: children) {
+        long g = getGeneration(child.getPath().getName());
+        if (g > 0 && g < generation) {
+          fs.delete(child.getPath(), false);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to clean up old lock files in " + mirror, e);
+    }
+  }
+
+  /**
+   * Return the live lock held on exactly this path, from the cache if the
+   * lease on the cached answer is still valid.
+   */
+  private PathLock getHeldLock(String path, boolean useCache)
+      throws IOException {
+    long now = System.currentTimeMillis();
+    if (useCache) {
+      Lease cached = cache.get(path);
+      if (cached != null && cached.validUntil > now) {
+        cacheMetrics.hit();
+        if (cached.lock == null || !cached.lock.isExpired()) {
+          return cached.lock;
+        }
+        return null;
+      }
+      cacheMetrics.miss();
+    }
+    PathLock lock = readCurrent(path, getMirrorDir(path)).lock;
+    cache.put(path, new Lease(lock, now + lease));
+    return lock;
+  }
+
+  /**
+   * Return a live lock on an ancestor of the path that covers it, always
+   * read from the store
+   */
+  private PathLock findAncestorLock(String path) throws IOException {
+    while (!"/".equals(path)) {
+      path = MemoryLockStore.getParentPath(path);
+      PathLock lock = getHeldLock(path, false);
+      if (lock != null && lock.isDeep()) {
+        return lock;
+      }
+    }
+    return null;
+  }
+
+  private PathLock findLock(String path, boolean useCache) throws IOException {
+    PathLock lock = getHeldLock(path, useCache);
+    if (lock != null) {
+      return lock;
+    }
+    while (!"/".equals(path)) {
+      path = MemoryLockStore.getParentPath(path);
+      lock = getHeldLock(path, useCache);
+      if (lock != null) {
+        return lock.isDeep() ? lock : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add the live locks below the mirror directory to the list, stopping at
+   * the first one if only their presence matters
+   */
+  private boolean collectLocks(Path mirror, String path, List<PathLock> locks,
+      boolean first) throws IOException {
+    FileStatus[] children = list(mirror);
+    if (children == null) {
+      return false;
+    }
+    for (FileStatus child: children) {
+      String name = child.getPath().getName();
+      if (child.isDir() && name.startsWith(COMPONENT_PREFIX)) {
+        String childPath = ("/".equals(path) ? "" : path) + "/" +
+          name.substring(COMPONENT_PREFIX.length());
+        PathLock lock = readCurrent(childPath, child.getPath()).lock;
+        if (lock != null) {
+          locks.add(lock);
+          if (first) {
+            return true;
+          }
+        }
+        if (collectLocks(child.getPath(), childPath, locks, first) &&
+            first) {
+          return true;
+        }
+      }
+    }
+    return !locks.isEmpty();
+  }
+
+  @Override
+  public PathLock getLock(String path) throws IOException {
+    return findLock(path, true);
+  }
+
+  @Override
+  public List<PathLock> getLocksBelow(String path) throws IOException {
+    List<PathLock> locks = new ArrayList<PathLock>();
+    collectLocks(getMirrorDir(path), path, locks, false);
+    return locks;
+  }
+
+  @Override
+  public boolean addLock(PathLock lock) throws IOException {
+    String path = lock.getPath();
+    // Always go to the store when taking a lock, a cached "not locked" may
+    // be up to a lease old
+    if (findLock(path, false) != null) {
+      return false;
+    }
+    if (lock.isDeep() && collectLocks(getMirrorDir(path), path,
+        new ArrayList<PathLock>(), true)) {
+      return false;
+    }
+    Path mirror = getMirrorDir(path);
+    Current current = readCurrent(path, mirror);
+    if (current.lock != null) {
+      cache.put(path, new Lease(current.lock,
+        System.currentTimeMillis() + lease));
+      return false;
+    }
+    // Whoever creates the next generation holds the lock, the others fail
+    long generation = current.generation + 1;
+    if (!claim(lock, mirror, generation)) {
+      cache.remove(path);
+      return false;
+    }
+    // An ancestor or descendant may have been locked elsewhere since the
+    // checks above, and will see this file when it checks in turn
+    if (findAncestorLock(path) != null || (lock.isDeep() &&
+        collectLocks(mirror, path, new ArrayList<PathLock>(), true))) {
+      release(path, mirror, generation);
+      cache.remove(path);
+      return false;
+    }
+    deleteOlder(mirror, generation);
+    cache.put(path, new Lease(lock, System.currentTimeMillis() + lease));
+    return true;
+  }
+
+  @Override
+  public void refreshLock(PathLock lock) throws IOException {
+    String path = lock.getPath();
+    Path mirror = getMirrorDir(path);
+    Current current = readCurrent(path, mirror);
+    if (current.lock == null ||
+        !current.lock.isLockedByToken(lock.getToken()) ||
+        !claim(lock, mirror, current.generation + 1)) {
+      cache.remove(path);
+      throw new IOException("Lock " + lock.getToken() + " on '" +
+        path + "' is no longer held");
+    }
+    deleteOlder(mirror, current.generation + 1);
+    cache.put(path, new Lease(lock, System.currentTimeMillis() + lease));
+  }
+
+  @Override
+  public boolean removeLock(PathLock lock) throws IOException {
+    String path = lock.getPath();
+    cache.remove(path);
+    Path mirror = getMirrorDir(path);
+    Current current = readCurrent(path, mirror);
+    if (current.lock == null ||
+        !current.lock.isLockedByToken(lock.getToken())) {
+      return false;
+    }
+    // Only the generation read is released, a newer one taken in the
+    // meantime by another gateway stays
+    boolean removed = release(path, mirror, current.generation);
+    cache.put(path, new Lease(null, System.currentTimeMillis() + lease));
+    return removed;
+  }
+
+  @Override
+  public void close() {
+    cache.clear();
+  }
+
+}
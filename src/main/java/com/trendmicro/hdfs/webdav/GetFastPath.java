@@ -0,0 +1,403 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import com.google.common.collect.MapMaker;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Serves GET and HEAD of plain files without going through the resource
+ * machinery: the path is resolved once, the file status is fetched with a
+ * single NameNode call, or none if recently cached, and the file is
+ * streamed. Single byte ranges, If-Range with a date and If-Modified-Since
+ * are answered here.
+ * <p>
+ * Anything else, such as collections, missing files, property sidecars,
+ * lock or entity tag conditions and multiple ranges, is left to the
+ * generic path.
+ */
+public class GetFastPath {
+
+  public static final String STATUS_CACHE_TTL_KEY =
+    "hadoop.webdav.get.status.cache.ttl.ms";
+  public static final long DEFAULT_STATUS_CACHE_TTL = 1000L;
+  public static final String STATUS_CACHE_SIZE_KEY =
+    "hadoop.webdav.get.status.cache.size";
+  public static final int DEFAULT_STATUS_CACHE_SIZE = 10000;
+
+  // Requests with any of these take the generic path
+  private static final String[] FALLBACK_HEADERS = {
+    "If", "If-Match", "If-None-Match", "If-Unmodified-Since", "Lock-Token"
+  };
+
+  /**
+   * Status of a file and the users known to be allowed to see it
+   */
+  private static class CachedStatus {
+    final FileStatus status;
+    final Set<String> users =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    CachedStatus(FileStatus status) {
+      this.status = status;
+    }
+  }
+
+  private final Configuration conf;
+  private final String prefix;
+  private final ProxyUserCache proxyUsers;
+  private final NameNodeThrottle throttle;
+  private final ConcurrentMap<String, CachedStatus> statusCache;
+  private final CacheMetrics cacheMetrics =
+    new CacheMetrics(GetFastPath.class, "status-cache");
+  private final Counter served =
+    Metrics.newCounter(GetFastPath.class, "served");
+  private final Counter fallbacks =
+    Metrics.newCounter(GetFastPath.class, "fallbacks");
+
+  public GetFastPath(Configuration conf, String prefix,
+      ProxyUserCache proxyUsers, NameNodeThrottle throttle) {
+    this.conf = conf;
+    this.prefix = prefix;
+    this.proxyUsers = proxyUsers;
+    this.throttle = throttle;
+    long ttl = conf.getLong(STATUS_CACHE_TTL_KEY, DEFAULT_STATUS_CACHE_TTL);
+    statusCache = ttl > 0 ? new MapMaker()
+      .maximumSize(conf.getInt(STATUS_CACHE_SIZE_KEY,
+        DEFAULT_STATUS_CACHE_SIZE))
+      .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+      .<String, CachedStatus>makeMap() : null;
+  }
+
+  /**
+   * Return the file system path for a request URI path, or null if it is
+   * outside the served prefix
+   */
+  private String getPath(String contextPath, String uriPath) {
+    String p = uriPath;
+    if (contextPath != null && contextPath.length() > 0) {
+      if (!p.startsWith(contextPath)) {
+        return null;
+      }
+      p = p.substring(contextPath.length());
+    }
+    if (!p.startsWith(prefix)) {
+      return null;
+    }
+    // Decoded as HDFSResource decodes locator paths
+    @SuppressWarnings("deprecation")
+    String decoded = URLDecoder.decode(p.substring(prefix.length()));
+    return decoded.trim().length() > 0 ? decoded : "/";
+  }
+
+  private static boolean isSimpleRead(HttpServletRequest request) {
+    for (String header: FALLBACK_HEADERS) {
+      if (request.getHeader(header) != null) {
+        return false;
+      }
+    }
+    String range = request.getHeader("Range");
+    return range == null || range.indexOf(',') < 0;
+  }
+
+  private FileStatus getStatus(UserGroupInformation ugi, String user,
+      final String path) throws IOException {
+    CachedStatus cached = statusCache != null ? statusCache.get(path) : null;
+    if (cached != null && cached.users.contains(user)) {
+      cacheMetrics.hit();
+      return cached.status;
+    }
+    cacheMetrics.miss();
+    FileStatus status;
+    try {
+      status = ugi.doAs(new PrivilegedExceptionAction<FileStatus>() {
+        public FileStatus run() throws Exception {
+          try {
+            return InstrumentedFileSystem.get(conf, throttle)
+              .getFileStatus(new Path(path));
+          } catch (FileNotFoundException e) {
+            return null;
+          }
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    if (statusCache != null && status != null && !status.isDir()) {
+      if (cached == null ||
+          cached.status.getModificationTime() !=
+            status.getModificationTime() ||
+          cached.status.getLen() != status.getLen()) {
+        cached = new CachedStatus(status);
+        statusCache.put(path, cached);
+      }
+      cached.users.add(user);
+    }
+    return status;
+  }
+
+  /**
+   * Serve a GET or HEAD if it is a plain read of a file. Returns false,
+   * having sent nothing, if the generic path must serve it instead.
+   */
+  public boolean serve(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (!isSimpleRead(request) || request.getRequestURI().endsWith("/")) {
+      fallbacks.inc();
+      return false;
+    }
+    String path = getPath(request.getContextPath(), request.getRequestURI());
+    if (path == null || DeadPropertyStore.isSidecar(new Path(path))) {
+      fallbacks.inc();
+      return false;
+    }
+    UserGroupInformation ugi = proxyUsers.get(request);
+    String user = request.getRemoteUser();
+    if (ugi == null) {
+      ugi = UserGroupInformation.getCurrentUser();
+      user = "";
+    }
+    FileStatus status = getStatus(ugi, user, path);
+    if (status == null || status.isDir()) {
+      fallbacks.inc();
+      return false;
+    }
+    served.inc();
+
+    long length = status.getLen();
+    long modified = status.getModificationTime();
+    response.setDateHeader("Last-Modified", modified);
+    response.setHeader("Accept-Ranges", "bytes");
+    long since;
+    try {
+      since = request.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      since = -1;
+    }
+    if (since >= 0 && modified / 1000 * 1000 <= since) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    long offset = 0;
+    long count = length;
+    long[] range = parseRange(request.getHeader("Range"), length);
+    if (range != null && !matchesIfRange(request, modified)) {
+      // The client's part of the file is stale, send all of it
+      range = null;
+    }
+    if (range != null) {
+      if (range[0] < 0) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(
+          HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return true;
+      }
+      offset = range[0];
+      count = range[1] - range[0] + 1;
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", "bytes " + range[0] + "-" +
+        range[1] + "/" + length);
+    }
+    setContentLength(response, count);
+    if (request.getMethod().equals("HEAD") || count == 0) {
+      return true;
+    }
+    try {
+      spool(ugi, status, response, offset, count);
+    } catch (FileNotFoundException e) {
+      // Deleted since its status was fetched or cached
+      if (statusCache != null) {
+        statusCache.remove(path);
+      }
+      if (response.isCommitted()) {
+        throw e;
+      }
+      response.reset();
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+    return true;
+  }
+
+  /**
+   * Return true unless the request has an If-Range the file does not
+   * match. Only dates are compared, the gateway sends no entity tags.
+   */
+  private static boolean matchesIfRange(HttpServletRequest request,
+      long modified) {
+    if (request.getHeader("If-Range") == null) {
+      return true;
+    }
+    try {
+      return request.getDateHeader("If-Range") == modified / 1000 * 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static void setContentLength(HttpServletResponse response,
+      long length) {
+    if (length <= Integer.MAX_VALUE) {
+      response.setContentLength((int)length);
+    } else {
+      response.setHeader("Content-Length", String.valueOf(length));
+    }
+  }
+
+  private void spool(UserGroupInformation ugi, final FileStatus status,
+      final HttpServletResponse response, final long offset,
+      final long count) throws IOException {
+    long start = System.nanoTime();
+    try {
+      ugi.doAs(new PrivilegedExceptionAction<Void>() {
+        public Void run() throws Exception {
+          new StreamSpooler(InstrumentedFileSystem.get(conf, throttle),
+            conf)
+            .spool(status, response.getOutputStream(), offset, count);
+          return null;
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      RequestContext context = RequestContext.get();
+      if (context != null) {
+        context.addCopyNanos(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Parse a single byte range against the length of the file. Returns
+   * null to serve the whole file, {-1, -1} if the range cannot be
+   * satisfied, or the first and last byte positions.
+   */
+  static long[] parseRange(String header, long length) {
+    if (header == null) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    long first, last;
+    try {
+      String from = spec.substring(0, dash).trim();
+      String to = spec.substring(dash + 1).trim();
+      if (from.length() == 0) {
+        // Suffix range, the last n bytes
+        long n = Long.parseLong(to);
+        if (n <= 0) {
+          return new long[] { -1, -1 };
+        }
+        first = Math.max(0, length - n);
+        last = length - 1;
+      } else {
+        first = Long.parseLong(from);
+        last = length - 1;
+        if (to.length() > 0) {
+          long end = Long.parseLong(to);
+          if (end < first) {
+            // Syntactically invalid, ignored as if absent
+            return null;
+          }
+          last = Math.min(end, last);
+        }
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (first >= length) {
+      return new long[] { -1, -1 };
+    }
+    return new long[] { first, last };
+  }
+
+  /**
+   * Forget cached status of the path and everything below it
+   */
+  private void evict(String path) {
+    if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    statusCache.remove(path);
+    String below = path.equals("/") ? path : path + "/";
+    for (String key: statusCache.keySet()) {
+      if (key.startsWith(below)) {
+        statusCache.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Forget cached status of the paths a modifying request touched,
+   * including the members of a collection that was deleted or moved
+   */
+  public void invalidate(HttpServletRequest request) {
+    if (statusCache == null) {
+      return;
+    }
+    String method = request.getMethod();
+    if (method.equals("GET") || method.equals("HEAD") ||
+        method.equals("OPTIONS") || method.equals("PROPFIND")) {
+      return;
+    }
+    String path = getPath(request.getContextPath(), request.getRequestURI());
+    if (path != null) {
+      evict(path);
+    }
+    String destination = request.getHeader("Destination");
+    if (destination != null) try {
+      path = getPath(request.getContextPath(),
+        new URI(destination).getRawPath());
+      if (path != null) {
+        evict(path);
+      }
+    } catch (URISyntaxException e) {
+      // Nothing was cached under it
+    }
+  }
+
+}
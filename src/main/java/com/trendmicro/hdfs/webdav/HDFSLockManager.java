@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.jackrabbit.webdav.DavException;
+import org.apache.jackrabbit.webdav.DavResource;
+import org.apache.jackrabbit.webdav.DavServletResponse;
+import org.apache.jackrabbit.webdav.lock.ActiveLock;
+import org.apache.jackrabbit.webdav.lock.LockInfo;
+import org.apache.jackrabbit.webdav.lock.LockManager;
+import org.apache.jackrabbit.webdav.lock.Scope;
+import org.apache.jackrabbit.webdav.lock.Type;
+
+/**
+ * Gateway wide exclusive write lock manager. Lock state is kept in a
+ * {@link LockStore}; by default the process local {@link MemoryLockStore},
+ * or a store shared between gateways such as {@link FileSystemLockStore}.
+ */
+public class HDFSLockManager implements LockManager {
+
+  private static final Log LOG = LogFactory.getLog(HDFSLockManager.class);
+
+  public static final String STORE_CLASS_KEY =
+    "hadoop.webdav.lock.store.class";
+  public static final String TIMEOUT_DEFAULT_KEY =
+    "hadoop.webdav.lock.timeout.default.ms";
+  public static final long DEFAULT_TIMEOUT_DEFAULT = 3600000L;
+  public static final String TIMEOUT_MAX_KEY =
+    "hadoop.webdav.lock.timeout.max.ms";
+  public static final long DEFAULT_TIMEOUT_MAX = 86400000L;
+
+  private final LockStore store;
+  private final long defaultTimeout;
+  private final long maxTimeout;
+
+  public HDFSLockManager(Configuration conf) {
+    this(conf, createStore(conf));
+  }
+
+  public HDFSLockManager(Configuration conf, LockStore store) {
+    this.store = store;
+    defaultTimeout = conf.getLong(TIMEOUT_DEFAULT_KEY, DEFAULT_TIMEOUT_DEFAULT);
+    maxTimeout = conf.getLong(TIMEOUT_MAX_KEY, DEFAULT_TIMEOUT_MAX);
+  }
+
+  private static LockStore createStore(Configuration conf) {
+    Class<? extends LockStore> storeClass = conf.getClass(STORE_CLASS_KEY,
+      MemoryLockStore.class, LockStore.class);
+    LOG.info("Using lock store " + storeClass.getName());
+    try {
+      return storeClass.getConstructor(Configuration.class).newInstance(conf);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to create lock store " +
+        storeClass.getName(), e);
+    }
+  }
+
+  static String getKey(DavResource resource) {
+    return resource.getHref();
+  }
+
+  private long getEffectiveTimeout(long requested) {
+    if (requested <= 0) {
+      requested = defaultTimeout;
+    }
+    if (maxTimeout > 0 && requested > maxTimeout) {
+      requested = maxTimeout;
+    }
+    return requested;
+  }
+
+  private PathLock getLock(String path) {
+    try {
+      return store.getLock(path);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public LockStore getStore() {
+    return store;
+  }
+
+  @Override
+  public ActiveLock createLock(final LockInfo lockInfo,
+      final DavResource resource) throws DavException {
+    if (lockInfo == null || resource == null) {
+      throw new IllegalArgumentException("Neither lockInfo nor resource must be null.");
+    }
+    if (!Type.WRITE.equals(lockInfo.getType()) ||
+        !Scope.EXCLUSIVE.equals(lockInfo.getScope())) {
+      throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED,
+        "Only exclusive write locks are supported");
+    }
+    String path = getKey(resource);
+    PathLock lock = new PathLock(path, lockInfo);
+    lock.setTimeout(getEffectiveTimeout(lockInfo.getTimeout()));
+    try {
+      if (!store.addLock(lock)) {
+        throw new DavException(DavServletResponse.SC_LOCKED,
+          "Resource '" + path + "' or a resource in its scope is locked");
+      }
+    } catch (IOException e) {
+      throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
+        e.getMessage());
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Created lock " + lock.getToken() + " on '" + path +
+        "' (depth " + (lock.isDeep() ? "infinity" : "0") + ", timeout " +
+        lock.getTimeout() + " ms)");
+    }
+    return lock;
+  }
+
+  @Override
+  public ActiveLock refreshLock(final LockInfo lockInfo, final String lockToken,
+      final DavResource resource) throws DavException {
+    PathLock lock = getLock(getKey(resource));
+    if (lock == null) {
+      throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED);
+    }
+    if (!lock.isLockedByToken(lockToken)) {
+      throw new DavException(DavServletResponse.SC_LOCKED);
+    }
+    lock.setTimeout(getEffectiveTimeout(lockInfo.getTimeout()));
+    try {
+      store.refreshLock(lock);
+    } catch (IOException e) {
+      throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
+        e.getMessage());
+    }
+    return lock;
+  }
+
+  @Override
+  public void releaseLock(final String lockToken, final DavResource resource)
+      throws DavException {
+    PathLock lock = getLock(getKey(resource));
+    if (lock == null) {
+      throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED);
+    }
+    if (!lock.isLockedByToken(lockToken)) {
+      throw new DavException(DavServletResponse.SC_LOCKED);
+    }
+    try {
+      if (!store.removeLock(lock)) {
+        throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED);
+      }
+    } catch (IOException e) {
+      throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
+        e.getMessage());
+    }
+  }
+
+  @Override
+  public ActiveLock getLock(final Type type, final Scope scope,
+      final DavResource resource) {
+    if (!(Type.WRITE.equals(type) && Scope.EXCLUSIVE.equals(scope))) {
+      return null;
+    }
+    return getLock(getKey(resource));
+  }
+
+  @Override
+  public boolean hasLock(final String lockToken, final DavResource resource) {
+    ActiveLock lock = getLock(getKey(resource));
+    return lock != null && lock.isLockedByToken(lockToken);
+  }
+
+  private static DavException locked(PathLock lock) {
+    return new DavException(DavServletResponse.SC_LOCKED, "Resource '" +
+      lock.getPath() + "' is locked");
+  }
+
+  /**
+   * Throw 423 Locked if the path, or with deep also anything below it, is
+   * locked by a lock whose token was not submitted
+   */
+  public void checkLocks(String path, Collection<String> tokens,
+      boolean deep) throws DavException {
+    try {
+      PathLock lock = store.getLock(path);
+      if (lock != null && !tokens.contains(lock.getToken())) {
+        throw locked(lock);
+      }
+      if (deep) {
+        for (PathLock below: store.getLocksBelow(path)) {
+          if (!tokens.contains(below.getToken())) {
+            throw locked(below);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
+        e.getMessage());
+    }
+  }
+
+  /**
+   * Release the locks held on the path and below it, once the path was
+   * deleted or moved away
+   */
+  public void removeLocks(String path) {
+    try {
+      PathLock lock = store.getLock(path);
+      // A depth infinity lock on an ancestor stays
+      if (lock != null && lock.getPath().equals(path)) {
+        store.removeLock(lock);
+      }
+      for (PathLock below: store.getLocksBelow(path)) {
+        store.removeLock(below);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to release locks on '" + path + "'", e);
+    }
+  }
+
+  public void close() {
+    try {
+      store.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close lock store", e);
+    }
+  }
+
+}
@@ -18,6 +18,7 @@
 
 package com.trendmicro.hdfs.webdav;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,8 +26,11 @@ import java.net.URLDecoder;
 import java.security.PrivilegedExceptionAction;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.apache.commons.logging.Log;
@@ -53,10 +57,11 @@ import org.apache.jackrabbit.webdav.MultiStatusResponse;
 import org.apache.jackrabbit.webdav.io.InputContext;
 import org.apache.jackrabbit.webdav.io.OutputContext;
 import org.apache.jackrabbit.webdav.lock.ActiveLock;
+import org.apache.jackrabbit.webdav.lock.LockDiscovery;
 import org.apache.jackrabbit.webdav.lock.LockInfo;
 import org.apache.jackrabbit.webdav.lock.LockManager;
 import org.apache.jackrabbit.webdav.lock.Scope;
-import org.apache.jackrabbit.webdav.lock.SimpleLockManager;
+import org.apache.jackrabbit.webdav.lock.SupportedLock;
 import org.apache.jackrabbit.webdav.lock.Type;
 import org.apache.jackrabbit.webdav.property.DavProperty;
 import org.apache.jackrabbit.webdav.property.DavPropertyName;
@@ -74,11 +79,48 @@ public class HDFSResource implements DavResource {
   private static final String COMPLIANCE_CLASS =
     DavCompliance.concatComplianceClasses(new String[] {DavCompliance._2_});
 
-  // We support compliance level 1, and the listed methods
+  // We support compliance level 2, and the listed methods
   private static final String SUPPORTED_METHODS =
-    "OPTIONS, GET, HEAD, POST, TRACE, MKCOL, COPY, PUT, DELETE, MOVE, PROPFIND";
+    "OPTIONS, GET, HEAD, POST, TRACE, MKCOL, COPY, PUT, DELETE, MOVE, " +
+    "PROPFIND, PROPPATCH, LOCK, UNLOCK";
+
+  // Properties computed from the file system or lock state, which clients
+  // cannot set or remove
+  private static final Set<DavPropertyName> LIVE_PROPERTIES =
+    new HashSet<DavPropertyName>(Arrays.asList(new DavPropertyName[] {
+      DavPropertyName.CREATIONDATE, DavPropertyName.DISPLAYNAME,
+      DavPropertyName.GETCONTENTLENGTH, DavPropertyName.GETCONTENTTYPE,
+      DavPropertyName.GETETAG, DavPropertyName.GETLASTMODIFIED,
+      DavPropertyName.ISCOLLECTION, DavPropertyName.LOCKDISCOVERY,
+      DavPropertyName.RESOURCETYPE, DavPropertyName.SUPPORTEDLOCK,
+      SecurityConstants.OWNER, SecurityConstants.GROUP
+    }));
+
+  // Live properties reported for allprop, in the order they are listed
+  private static final DavPropertyName[] COMPUTED_PROPERTIES = {
+    DavPropertyName.GETCONTENTLENGTH, DavPropertyName.GETLASTMODIFIED,
+    SecurityConstants.OWNER, SecurityConstants.GROUP,
+    DavPropertyName.DISPLAYNAME, DavPropertyName.SUPPORTEDLOCK,
+    DavPropertyName.LOCKDISCOVERY, DavPropertyName.RESOURCETYPE,
+    DavPropertyName.ISCOLLECTION
+  };
+
+  // SimpleDateFormat is not thread safe, so each thread keeps its own
+  // rather than every resource cloning one
+  private static final ThreadLocal<SimpleDateFormat> LAST_MODIFIED_FORMAT =
+    new ThreadLocal<SimpleDateFormat>() {
+      @Override
+      protected SimpleDateFormat initialValue() {
+        SimpleDateFormat format =
+          (SimpleDateFormat)DavConstants.modificationDateFormat.clone();
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+      }
+    };
 
-  private LockManager lockManager = new SimpleLockManager();
+  private LockManager lockManager;
+  private DeadPropertyStore propertyStore;
+  private NameNodeThrottle throttle;
   private DavPropertySet properties;
   private DavResourceFactory factory;
   private DavResourceLocator locator;
@@ -87,6 +129,9 @@ public class HDFSResource implements DavResource {
   private final Path path; //the path object that this resource represents
   private boolean isCollectionRequest = false;
   private UserGroupInformation user;
+  // Memoized status of the path, null if it does not exist
+  private FileStatus status;
+  private boolean statusLoaded = false;
 
   public HDFSResource(DavResourceFactory factory, DavResourceLocator locator,
       DavSession session, ResourceConfig resourceConf, Configuration conf)
@@ -116,21 +161,91 @@ public class HDFSResource implements DavResource {
     return path;
   }
 
+  /**
+   * Return the file system as the current user, instrumented so that calls
+   * are charged to the request being served
+   */
+  private FileSystem getFileSystem() throws IOException {
+    return InstrumentedFileSystem.get(conf, throttle);
+  }
+
+  /**
+   * Return the status of the path, or null if it does not exist. The status
+   * is fetched once per resource, so existence, type, times and length cost
+   * a single NameNode call however often the servlet asks for them.
+   */
+  private synchronized FileStatus getStatus() throws IOException,
+      InterruptedException {
+    if (!statusLoaded) {
+      status = user.doAs(new PrivilegedExceptionAction<FileStatus>() {
+        public FileStatus run() throws Exception {
+          try {
+            return getFileSystem().getFileStatus(path);
+          } catch (FileNotFoundException e) {
+            return null;
+          }
+        }
+      });
+      statusLoaded = true;
+    }
+    return status;
+  }
+
+  /**
+   * Seed the status from a listing of the parent directory
+   */
+  synchronized void setStatus(FileStatus status) {
+    this.status = status;
+    statusLoaded = true;
+  }
+
+  /**
+   * Forget the memoized status and properties after the path was changed
+   */
+  synchronized void invalidateStatus() {
+    status = null;
+    statusLoaded = false;
+    properties = null;
+  }
+
   public void setProxyUser(final String user) throws IOException {
+    setProxyUser(user != null ? UserGroupInformation.createProxyUser(user,
+      UserGroupInformation.getLoginUser()) : null);
+  }
+
+  /**
+   * Act as the given proxy user, or as the gateway user if null
+   */
+  public void setProxyUser(final UserGroupInformation user)
+      throws IOException {
     if (user != null) {
-      this.user = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
+      this.user = user;
     }
     if (this.user == null) {
       this.user = UserGroupInformation.getCurrentUser();
     }
   }
 
+  private static void addCopyNanos(long nanos) {
+    RequestContext context = RequestContext.get();
+    if (context != null) {
+      context.addCopyNanos(nanos);
+    }
+  }
+
   @Override
   public void addLockManager(final LockManager lockManager) {
     this.lockManager = lockManager;
   }
 
+  void setPropertyStore(final DeadPropertyStore propertyStore) {
+    this.propertyStore = propertyStore;
+  }
+
+  void setThrottle(final NameNodeThrottle throttle) {
+    this.throttle = throttle;
+  }
+
   @Override
   public void addMember(final DavResource resource, final InputContext context)
       throws DavException {
@@ -147,7 +262,7 @@ public class HDFSResource implements DavResource {
         }
         boolean success = user.doAs(new PrivilegedExceptionAction<Boolean>() {
           public Boolean run() throws Exception {
-            return FileSystem.get(conf).mkdirs(destPath);
+            return getFileSystem().mkdirs(destPath);
           }
         });
         if (!success) {
@@ -160,7 +275,7 @@ public class HDFSResource implements DavResource {
         if (!context.hasStream() || context.getContentLength() < 0) {
           boolean success = user.doAs(new PrivilegedExceptionAction<Boolean>() {
             public Boolean run() throws Exception {
-              return FileSystem.get(conf).createNewFile(destPath);
+              return getFileSystem().createNewFile(destPath);
             }
           });
           if (!success) {
@@ -169,9 +284,14 @@ public class HDFSResource implements DavResource {
         } else {
           user.doAs(new PrivilegedExceptionAction<Void>() {
             public Void run() throws Exception {
-              OutputStream out = FileSystem.get(conf).create(destPath);
+              OutputStream out = getFileSystem().create(destPath);
               InputStream in = context.getInputStream();
-              IOUtils.copyBytes(in, out, conf, true);
+              long start = System.nanoTime();
+              try {
+                IOUtils.copyBytes(in, out, conf, true);
+              } finally {
+                addCopyNanos(System.nanoTime() - start);
+              }
               return null;
             }
           });
@@ -181,13 +301,67 @@ public class HDFSResource implements DavResource {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
+    } finally {
+      dfsResource.invalidateStatus();
     }
   }
 
   @Override
   public MultiStatusResponse alterProperties(final List<? extends PropEntry> props)
       throws DavException {
-    return null;
+    if (propertyStore == null) {
+      throw new DavException(DavServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+    MultiStatusResponse msr = new MultiStatusResponse(getHref(), null);
+    List<DavProperty<?>> set = new ArrayList<DavProperty<?>>();
+    List<DavPropertyName> remove = new ArrayList<DavPropertyName>();
+    List<DavPropertyName> changed = new ArrayList<DavPropertyName>();
+    boolean failed = false;
+    for (PropEntry entry: props) {
+      DavPropertyName name;
+      if (entry instanceof DavProperty<?>) {
+        DavProperty<?> property = (DavProperty<?>)entry;
+        name = property.getName();
+        set.add(property);
+      } else if (entry instanceof DavPropertyName) {
+        name = (DavPropertyName)entry;
+        remove.add(name);
+      } else {
+        throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Unknown property change " + entry);
+      }
+      if (LIVE_PROPERTIES.contains(name)) {
+        msr.add(name, DavServletResponse.SC_FORBIDDEN);
+        failed = true;
+      } else {
+        changed.add(name);
+      }
+    }
+    // PROPPATCH is atomic, if any change is refused none are applied
+    if (failed) {
+      for (DavPropertyName name: changed) {
+        msr.add(name, DavServletResponse.SC_FAILED_DEPENDENCY);
+      }
+      return msr;
+    }
+    updateDeadProperties(set, remove);
+    for (DavPropertyName name: changed) {
+      msr.add(name, DavServletResponse.SC_OK);
+    }
+    return msr;
+  }
+
+  private void updateDeadProperties(final List<DavProperty<?>> set,
+      final List<DavPropertyName> remove) {
+    try {
+      propertyStore.update(user, path, set, remove);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    synchronized (this) {
+      // Recompute on next access
+      properties = null;
+    }
   }
 
   @Override
@@ -206,15 +380,18 @@ public class HDFSResource implements DavResource {
       try {
         user.doAs(new PrivilegedExceptionAction<Void>() {
           public Void run() throws Exception {
-            FileSystem fs = FileSystem.get(conf);
+            FileSystem fs = getFileSystem();
             FileUtil.copy(fs, path, fs, destPath, false, conf);
             return null;
           }
         });
+        copyDeadProperties(destPath, false);
       } catch (IOException e) {
         throw new RuntimeException(e);
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
+      } finally {
+        dfsResource.invalidateStatus();
       }
       return;
     }
@@ -224,17 +401,22 @@ public class HDFSResource implements DavResource {
       "Shallow copies are not supported");
   }
 
+  private void copyDeadProperties(final Path destPath, boolean move) {
+    if (propertyStore != null) try {
+      propertyStore.copy(user, path, destPath, move);
+    } catch (IOException e) {
+      LOG.warn("Unable to carry properties of '" + path.toUri().getPath() +
+        "' over to '" + destPath.toUri().getPath() + "'", e);
+    }
+  }
+
   @Override
   public boolean exists() {
     try {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Testing existence of '" + path + "'");
       }
-      return user.doAs(new PrivilegedExceptionAction<Boolean>() {
-        public Boolean run() throws Exception {
-          return FileSystem.get(conf).exists(path);
-        }            
-      });
+      return getStatus() != null;
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
@@ -297,11 +479,18 @@ public class HDFSResource implements DavResource {
 
   @Override
   public ActiveLock getLock(final Type type, final Scope scope) {
+    if (!isLockable(type, scope)) {
+      return null;
+    }
     return lockManager.getLock(type, scope, this);
   }
 
   @Override
   public ActiveLock[] getLocks() {
+    ActiveLock writeLock = getLock(Type.WRITE, Scope.EXCLUSIVE);
+    if (writeLock != null) {
+      return new ActiveLock[] { writeLock };
+    }
     return new ActiveLock[0];
   }
 
@@ -311,12 +500,17 @@ public class HDFSResource implements DavResource {
     try {
       FileStatus[] stat = user.doAs(new PrivilegedExceptionAction<FileStatus[]>() {
         public FileStatus[] run() throws Exception {
-          return FileSystem.get(conf).listStatus(path);
+          return getFileSystem().listStatus(path);
         }
       });
       if (stat != null) {
+        boolean hasSidecar = false;
         for (FileStatus s: stat) {
           Path p = s.getPath();
+          if (DeadPropertyStore.isSidecar(p)) {
+            hasSidecar = true;
+            continue;
+          }
           DavResourceLocator resourceLocator =
             locator.getFactory().createResourceLocator(locator.getPrefix(),
               locator.getWorkspacePath(), p.toString(), false);
@@ -324,12 +518,17 @@ public class HDFSResource implements DavResource {
             HDFSResource resource = (HDFSResource)
               factory.createResource(resourceLocator, getSession());
             resource.user = this.user;
+            // Spare each member its own NameNode call
+            resource.setStatus(s);
             list.add(resource);
           } catch (DavException ex) {
             LOG.warn("Exception adding resource '" + p.toUri().getPath() +
               "' to iterator");
           }
         }
+        if (propertyStore != null && !hasSidecar) {
+          propertyStore.setNoSidecar(user, path);
+        }
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -342,11 +541,11 @@ public class HDFSResource implements DavResource {
   @Override
   public long getModificationTime() {
     try {
-      return user.doAs(new PrivilegedExceptionAction<Long>() {
-        public Long run() throws Exception {
-          return FileSystem.get(conf).getFileStatus(path).getModificationTime();
-        }
-      });
+      FileStatus stat = getStatus();
+      if (stat == null) {
+        throw new FileNotFoundException("File does not exist: " + path);
+      }
+      return stat.getModificationTime();
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
@@ -354,52 +553,98 @@ public class HDFSResource implements DavResource {
     }
   }
 
-  @SuppressWarnings({ "rawtypes", "unchecked" })
-  private void populateProperties() {
-    if (properties != null) {
-      return;
-    }
-    properties = new DavPropertySet();
-    FileStatus stat = null;
+  /**
+   * Return the status for computing properties, or null if it cannot be had
+   */
+  private FileStatus getPropertyStatus() {
     try {
-      stat = user.doAs(new PrivilegedExceptionAction<FileStatus>() {
-        public FileStatus run() throws Exception {
-          return FileSystem.get(conf).getFileStatus(getPath());
-        }
-      });
+      return getStatus();
+    } catch (ThrottledException ex) {
+      // Fail the request rather than answer with missing properties
+      throw new RuntimeException(ex);
     } catch (IOException ex) {
       LOG.warn(StringUtils.stringifyException(ex));
     } catch (InterruptedException e) {
       LOG.warn(StringUtils.stringifyException(e));
     }
-    if (stat != null) {
-      properties.add(new DefaultDavProperty(DavPropertyName.GETCONTENTLENGTH,
-        stat.getLen()));
-      SimpleDateFormat simpleFormat =
-        (SimpleDateFormat)DavConstants.modificationDateFormat.clone();
-      simpleFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-      Date date = new Date(stat.getModificationTime());
-      properties.add(new DefaultDavProperty(DavPropertyName.GETLASTMODIFIED,
-        simpleFormat.format(date)));
-      properties.add(new DefaultDavProperty(SecurityConstants.OWNER,
-        stat.getOwner()));
-      properties.add(new DefaultDavProperty(SecurityConstants.GROUP,
-        stat.getGroup()));
-      // TODO: Populate DAV property SecurityConstants.CURRENT_USER_PRIVILEGE_SET
-    }
-    if (getDisplayName() != null) {
-      properties.add(new DefaultDavProperty(DavPropertyName.DISPLAYNAME,
-        getDisplayName()));
+    return null;
+  }
+
+  /**
+   * Compute a single live property, or return null if the resource has no
+   * value for it. Only what the property needs is looked at, so asking for
+   * the resource type or length of many members costs no more than that.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private DavProperty<?> getLiveProperty(final DavPropertyName name) {
+    if (name.equals(DavPropertyName.DISPLAYNAME)) {
+      String displayName = getDisplayName();
+      return displayName != null ?
+        new DefaultDavProperty(DavPropertyName.DISPLAYNAME, displayName) :
+        null;
     }
-    if (isCollection()) {
-      properties.add(new ResourceType(ResourceType.COLLECTION));
-      // Windows XP support
-      properties.add(new DefaultDavProperty(DavPropertyName.ISCOLLECTION, "1"));
-    } else {
-      properties.add(new ResourceType(ResourceType.DEFAULT_RESOURCE));
+    if (name.equals(DavPropertyName.SUPPORTEDLOCK)) {
+      SupportedLock supportedLock = new SupportedLock();
+      supportedLock.addEntry(Type.WRITE, Scope.EXCLUSIVE);
+      return supportedLock;
+    }
+    if (name.equals(DavPropertyName.LOCKDISCOVERY)) {
+      return new LockDiscovery(getLocks());
+    }
+    FileStatus stat = getPropertyStatus();
+    if (name.equals(DavPropertyName.RESOURCETYPE)) {
+      return new ResourceType(stat != null && stat.isDir() ?
+        ResourceType.COLLECTION : ResourceType.DEFAULT_RESOURCE);
+    }
+    if (name.equals(DavPropertyName.ISCOLLECTION)) {
       // Windows XP support
-      properties.add(new DefaultDavProperty(DavPropertyName.ISCOLLECTION, "0"));
+      return new DefaultDavProperty(DavPropertyName.ISCOLLECTION,
+        stat != null && stat.isDir() ? "1" : "0");
     }
+    if (stat == null) {
+      return null;
+    }
+    if (name.equals(DavPropertyName.GETCONTENTLENGTH)) {
+      return new DefaultDavProperty(DavPropertyName.GETCONTENTLENGTH,
+        stat.getLen());
+    }
+    if (name.equals(DavPropertyName.GETLASTMODIFIED)) {
+      return new DefaultDavProperty(DavPropertyName.GETLASTMODIFIED,
+        LAST_MODIFIED_FORMAT.get().format(
+          new Date(stat.getModificationTime())));
+    }
+    if (name.equals(SecurityConstants.OWNER)) {
+      return new DefaultDavProperty(SecurityConstants.OWNER,
+        stat.getOwner());
+    }
+    if (name.equals(SecurityConstants.GROUP)) {
+      return new DefaultDavProperty(SecurityConstants.GROUP,
+        stat.getGroup());
+    }
+    // TODO: Populate DAV property SecurityConstants.CURRENT_USER_PRIVILEGE_SET
+    return null;
+  }
+
+  private void populateProperties() {
+    if (properties != null) {
+      return;
+    }
+    DavPropertySet all = new DavPropertySet();
+    for (DavPropertyName name: COMPUTED_PROPERTIES) {
+      DavProperty<?> property = getLiveProperty(name);
+      if (property != null) {
+        all.add(property);
+      }
+    }
+    if (propertyStore != null) {
+      for (DavProperty<?> property:
+          propertyStore.getProperties(user, path).values()) {
+        if (!all.contains(property.getName())) {
+          all.add(property);
+        }
+      }
+    }
+    properties = all;
   }
 
   @Override
@@ -415,10 +660,17 @@ public class HDFSResource implements DavResource {
   @Override
   public DavProperty<?> getProperty(final DavPropertyName name) {
     synchronized (this) {
-      if (properties == null) {
-        populateProperties();
+      if (properties != null) {
+        return properties.get(name);
+      }
+      // PROPFIND asks by name, so compute just the requested property
+      if (LIVE_PROPERTIES.contains(name)) {
+        return getLiveProperty(name);
       }
-      return properties.get(name);
+      if (propertyStore != null) {
+        return propertyStore.getProperties(user, path).get(name);
+      }
+      return null;
     }
   }
 
@@ -449,17 +701,14 @@ public class HDFSResource implements DavResource {
 
   @Override
   public boolean hasLock(final Type type, final Scope scope) {
-    return false;
+    return getLock(type, scope) != null;
   }
 
   @Override
   public boolean isCollection() {
     try {
-      return user.doAs(new PrivilegedExceptionAction<Boolean>() {
-        public Boolean run() throws Exception {
-          return FileSystem.get(conf).getFileStatus(path).isDir();
-        }
-      });
+      FileStatus stat = getStatus();
+      return stat != null && stat.isDir();
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
@@ -469,11 +718,15 @@ public class HDFSResource implements DavResource {
 
   @Override
   public boolean isLockable(final Type type, final Scope scope) {
-    return false;
+    return Type.WRITE.equals(type) && Scope.EXCLUSIVE.equals(scope);
   }
 
   @Override
   public ActiveLock lock(final LockInfo reqLockInfo) throws DavException {
+    if (!isLockable(reqLockInfo.getType(), reqLockInfo.getScope())) {
+      throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED,
+        "Unsupported lock type or scope");
+    }
     return lockManager.createLock(reqLockInfo, this);
   }
 
@@ -486,16 +739,38 @@ public class HDFSResource implements DavResource {
         destPath.toUri().getPath() + "'");
     }
     try {
-      user.doAs(new PrivilegedExceptionAction<Void>() {
-        public Void run() throws Exception {
-          FileSystem.get(conf).rename(path, destPath);
-          return null;
+      // HDFS reports a refused rename only by returning false, so look
+      // for the likely reason to answer with
+      int error = user.doAs(new PrivilegedExceptionAction<Integer>() {
+        public Integer run() throws Exception {
+          FileSystem fs = getFileSystem();
+          if (fs.rename(path, destPath)) {
+            return 0;
+          }
+          if (fs.exists(destPath)) {
+            return DavServletResponse.SC_PRECONDITION_FAILED;
+          }
+          if (!fs.exists(destPath.getParent())) {
+            return DavServletResponse.SC_CONFLICT;
+          }
+          return DavServletResponse.SC_INTERNAL_SERVER_ERROR;
         }
       });
+      if (error != 0) {
+        throw new DavException(error, "Unable to move '" +
+          path.toUri().getPath() + "' to '" + destPath.toUri().getPath() +
+          "'");
+      }
+      copyDeadProperties(destPath, true);
+      // Locks do not move with the resource, RFC 4918 section 7.7
+      releaseLocks(this);
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
+    } finally {
+      invalidateStatus();
+      dfsResource.invalidateStatus();
     }
   }
 
@@ -505,6 +780,16 @@ public class HDFSResource implements DavResource {
     return lockManager.refreshLock(reqLockInfo, lockToken, this);
   }
 
+  /**
+   * Release the locks left on the path of a resource that is gone
+   */
+  private void releaseLocks(HDFSResource resource) {
+    if (lockManager instanceof HDFSLockManager) {
+      ((HDFSLockManager)lockManager).removeLocks(
+        HDFSLockManager.getKey(resource));
+    }
+  }
+
   @Override
   public void removeMember(final DavResource resource) throws DavException {
     final HDFSResource dfsResource = (HDFSResource)resource;
@@ -515,49 +800,79 @@ public class HDFSResource implements DavResource {
       }
       boolean success = user.doAs(new PrivilegedExceptionAction<Boolean>() {
         public Boolean run() throws Exception {
-          return FileSystem.get(conf).delete(destPath, true);
+          return getFileSystem().delete(destPath, true);
         }
       });
       if (!success) {
         throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
+      releaseLocks(dfsResource);
+      if (propertyStore != null) try {
+        propertyStore.remove(user, destPath);
+      } catch (IOException e) {
+        LOG.warn("Unable to remove properties of '" +
+          destPath.toUri().getPath() + "'", e);
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
+    } finally {
+      dfsResource.invalidateStatus();
     }
   }
 
   @Override
   public void removeProperty(final DavPropertyName name) throws DavException {
-    synchronized (this) {
-      if (properties == null) {
-        populateProperties();
-      }
-      properties.remove(name);
+    if (propertyStore == null) {
+      throw new DavException(DavServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+    if (LIVE_PROPERTIES.contains(name)) {
+      throw new DavException(DavServletResponse.SC_FORBIDDEN);
     }
+    List<DavPropertyName> remove = new ArrayList<DavPropertyName>(1);
+    remove.add(name);
+    updateDeadProperties(new ArrayList<DavProperty<?>>(0), remove);
   }
 
   @Override
   public void setProperty(final DavProperty<?> property) throws DavException {
-    synchronized (this) {
-      if (properties == null) {
-        populateProperties();
-      }
-      properties.add(property);
+    if (propertyStore == null) {
+      throw new DavException(DavServletResponse.SC_METHOD_NOT_ALLOWED);
     }
+    if (LIVE_PROPERTIES.contains(property.getName())) {
+      throw new DavException(DavServletResponse.SC_FORBIDDEN);
+    }
+    List<DavProperty<?>> set = new ArrayList<DavProperty<?>>(1);
+    set.add(property);
+    updateDeadProperties(set, new ArrayList<DavPropertyName>(0));
   }
 
   @Override
   public void spool(final OutputContext context) throws IOException {
-    if (!isCollection()) try {
+    if (isCollection()) {
+      return;
+    }
+    try {
+      // A known length lets the connection be reused without chunking, by
+      // HTTP/1.0 keep-alive clients too
+      final FileStatus stat = getStatus();
+      if (stat == null) {
+        throw new FileNotFoundException("File does not exist: " + path);
+      }
+      context.setContentLength(stat.getLen());
+      // HEAD has no stream to spool to, so do not open the file
+      if (!context.hasStream()) {
+        return;
+      }
       user.doAs(new PrivilegedExceptionAction<Void>() {
         public Void run() throws Exception {
-          InputStream input = FileSystem.get(conf).open(path);
+          long start = System.nanoTime();
           try {
-            IOUtils.copyBytes(input, context.getOutputStream(), conf, false);
+            new StreamSpooler(getFileSystem(), conf).spool(stat,
+              context.getOutputStream());
           } finally {
-            input.close();
+            addCopyNanos(System.nanoTime() - start);
           }
           return null;
         }
@@ -568,6 +883,15 @@ public class HDFSResource implements DavResource {
   }
 
   @Override
-  public void unlock(final String lockToken) throws DavException { }
+  public void unlock(final String lockToken) throws DavException {
+    ActiveLock lock = getLock(Type.WRITE, Scope.EXCLUSIVE);
+    if (lock == null) {
+      throw new DavException(DavServletResponse.SC_PRECONDITION_FAILED);
+    }
+    if (!lock.isLockedByToken(lockToken)) {
+      throw new DavException(DavServletResponse.SC_LOCKED);
+    }
+    lockManager.releaseLock(lockToken, this);
+  }
 
 }
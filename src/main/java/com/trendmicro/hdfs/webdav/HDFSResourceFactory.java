@@ -29,23 +29,37 @@ import org.apache.jackrabbit.webdav.DavResourceLocator;
 import org.apache.jackrabbit.webdav.DavServletRequest;
 import org.apache.jackrabbit.webdav.DavServletResponse;
 import org.apache.jackrabbit.webdav.DavSession;
+import org.apache.jackrabbit.webdav.lock.LockManager;
 import org.apache.jackrabbit.webdav.simple.ResourceConfig;
 
 public class HDFSResourceFactory implements DavResourceFactory {
 
   private ResourceConfig resourceConf;
   private Configuration conf;
+  private LockManager lockManager;
+  private DeadPropertyStore propertyStore;
+  private NameNodeThrottle throttle;
 
-  public HDFSResourceFactory(ResourceConfig resourceConf, Configuration conf) {
+  public HDFSResourceFactory(ResourceConfig resourceConf, Configuration conf,
+      LockManager lockManager, DeadPropertyStore propertyStore,
+      NameNodeThrottle throttle) {
     this.resourceConf = resourceConf;
     this.conf = conf;
+    this.lockManager = lockManager;
+    this.propertyStore = propertyStore;
+    this.throttle = throttle;
   }
 
   @Override
   public DavResource createResource(DavResourceLocator locator,
       DavSession session) throws DavException {
     try {
-      return new HDFSResource(this, locator, session, resourceConf, conf);
+      HDFSResource resource =
+        new HDFSResource(this, locator, session, resourceConf, conf);
+      resource.addLockManager(lockManager);
+      resource.setPropertyStore(propertyStore);
+      resource.setThrottle(throttle);
+      return resource;
     } catch (IOException e) {
       throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
         e.getMessage());
@@ -56,12 +70,23 @@ public class HDFSResourceFactory implements DavResourceFactory {
   public DavResource createResource(DavResourceLocator locator,
       DavServletRequest request, DavServletResponse response)
       throws DavException {
+    long start = System.nanoTime();
     try {
-      return new HDFSResource(this, locator, request.getDavSession(),
-        resourceConf, conf, DavMethods.isCreateCollectionRequest(request));
+      HDFSResource resource = new HDFSResource(this, locator,
+        request.getDavSession(), resourceConf, conf,
+        DavMethods.isCreateCollectionRequest(request));
+      resource.addLockManager(lockManager);
+      resource.setPropertyStore(propertyStore);
+      resource.setThrottle(throttle);
+      return resource;
     } catch (IOException e) {
       throw new DavException(DavServletResponse.SC_INTERNAL_SERVER_ERROR,
         e.getMessage());
+    } finally {
+      RequestContext context = RequestContext.get();
+      if (context != null) {
+        context.addResourceNanos(System.nanoTime() - start);
+      }
     }
   }
 
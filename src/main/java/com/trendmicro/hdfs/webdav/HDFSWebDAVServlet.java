@@ -20,6 +20,12 @@ package com.trendmicro.hdfs.webdav;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -32,18 +38,27 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.DavLocatorFactory;
+import org.apache.jackrabbit.webdav.DavMethods;
 import org.apache.jackrabbit.webdav.DavResource;
 import org.apache.jackrabbit.webdav.DavResourceFactory;
+import org.apache.jackrabbit.webdav.DavResourceLocator;
+import org.apache.jackrabbit.webdav.DavServletResponse;
 import org.apache.jackrabbit.webdav.DavSessionProvider;
 import org.apache.jackrabbit.webdav.MultiStatus;
 import org.apache.jackrabbit.webdav.MultiStatusResponse;
 import org.apache.jackrabbit.webdav.WebdavRequest;
+import org.apache.jackrabbit.webdav.WebdavResponse;
 import org.apache.jackrabbit.webdav.WebdavResponseImpl;
+import org.apache.jackrabbit.webdav.header.IfHeader;
 import org.apache.jackrabbit.webdav.server.AbstractWebdavServlet;
 import org.apache.jackrabbit.webdav.simple.LocatorFactoryImpl;
 import org.apache.jackrabbit.webdav.simple.ResourceConfig;
 import org.apache.tika.detect.DefaultDetector;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Timer;
+
 public class HDFSWebDAVServlet extends AbstractWebdavServlet {
 
   private static final long serialVersionUID = 1L;
@@ -84,6 +99,44 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
   private DavSessionProvider sessionProvider;
   private ResourceConfig resourceConf;
   private Configuration hadoopConf;
+  private HDFSLockManager lockManager;
+  private DeadPropertyStore propertyStore;
+  private volatile SlowRequestLog slowRequestLog;
+  private volatile AdmissionControl admissionControl;
+  private volatile Bulkhead bulkhead;
+  private volatile ProxyUserCache proxyUserCache;
+  private volatile GetFastPath fastPath;
+  private volatile NameNodeThrottle nameNodeThrottle;
+  private final ConcurrentMap<String, MethodMetrics> methodMetrics =
+    new ConcurrentHashMap<String, MethodMetrics>();
+
+  /** Request metrics scoped by WebDAV method */
+  private static class MethodMetrics {
+    final Timer latency;
+    final Timer timeToFirstByte;
+    // NameNode calls per request, the "RPC budget" actually spent
+    final Histogram nameNodeCalls;
+
+    MethodMetrics(String method) {
+      latency = Metrics.newTimer(HDFSWebDAVServlet.class, "requests", method,
+        TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      timeToFirstByte = Metrics.newTimer(HDFSWebDAVServlet.class,
+        "time-to-first-byte", method, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      nameNodeCalls = Metrics.newHistogram(HDFSWebDAVServlet.class,
+        "namenode-calls", method, true);
+    }
+
+    void update(RequestContext context) {
+      long end = context.getEndNanos();
+      long start = context.getStartNanos();
+      latency.update(end - start, TimeUnit.NANOSECONDS);
+      // Without a body the response goes out when the request completes
+      long firstByte = context.getFirstByteNanos();
+      timeToFirstByte.update((firstByte > 0 ? firstByte : end) - start,
+        TimeUnit.NANOSECONDS);
+      nameNodeCalls.update(context.getNameNodeCalls());
+    }
+  }
 
   protected HDFSWebDAVServlet() { }
 
@@ -106,12 +159,109 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
   @Override
   protected boolean isPreconditionValid(WebdavRequest request,
       DavResource resource) {
+    RequestContext context = RequestContext.get();
+    long start = System.nanoTime();
+    long nameNodeStart = context != null ? context.getNameNodeNanos() : 0;
     try {
       HDFSResource dfsResource = (HDFSResource)resource;
-      dfsResource.setProxyUser(request.getRemoteUser());
+      dfsResource.setProxyUser(getProxyUserCache().get(request));
       return !resource.exists() || request.matchesIfHeader(resource);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      if (context != null) {
+        context.addPreconditionNanos(System.nanoTime() - start -
+          (context.getNameNodeNanos() - nameNodeStart));
+      }
+    }
+  }
+
+  @Override
+  protected boolean execute(WebdavRequest request, WebdavResponse response,
+      int method, DavResource resource) throws ServletException, IOException,
+      DavException {
+    checkSidecar(request, method, resource);
+    checkLocks(request, method, resource);
+    return super.execute(request, response, method, resource);
+  }
+
+  /**
+   * Refuse any request on a dead property sidecar, or with one as its
+   * destination. They are only ever read and written through PROPFIND and
+   * PROPPATCH on the resources they describe.
+   */
+  private void checkSidecar(WebdavRequest request, int method,
+      DavResource resource) throws DavException {
+    boolean sidecar =
+      DeadPropertyStore.SIDECAR_NAME.equals(resource.getDisplayName());
+    if (!sidecar &&
+        (method == DavMethods.DAV_MOVE || method == DavMethods.DAV_COPY)) {
+      DavResourceLocator destination = request.getDestinationLocator();
+      sidecar = destination != null && DeadPropertyStore.SIDECAR_NAME.equals(
+        getResourceFactory().createResource(destination,
+          request.getDavSession()).getDisplayName());
+    }
+    if (sidecar) {
+      throw new DavException(DavServletResponse.SC_FORBIDDEN,
+        "Property files cannot be accessed directly");
+    }
+  }
+
+  private static Set<String> getSubmittedTokens(WebdavRequest request) {
+    Set<String> tokens = new HashSet<String>();
+    Iterator<String> it = new IfHeader(request).getAllTokens();
+    while (it.hasNext()) {
+      tokens.add(it.next());
+    }
+    return tokens;
+  }
+
+  /**
+   * Refuse with 423 Locked a request that changes a locked resource, or
+   * the members of a locked collection, unless its If header carries the
+   * token of the lock. A matching If header is checked separately by
+   * {@link #isPreconditionValid}; this covers requests without one.
+   */
+  private void checkLocks(WebdavRequest request, int method,
+      DavResource resource) throws DavException {
+    HDFSLockManager locks = getLockManager();
+    String path = HDFSLockManager.getKey(resource);
+    String parent = MemoryLockStore.getParentPath(path);
+    Set<String> tokens;
+    switch (method) {
+    case DavMethods.DAV_PUT:
+    case DavMethods.DAV_POST:
+    case DavMethods.DAV_PROPPATCH:
+      tokens = getSubmittedTokens(request);
+      locks.checkLocks(path, tokens, false);
+      if (method == DavMethods.DAV_PUT && !resource.exists()) {
+        locks.checkLocks(parent, tokens, false);
+      }
+      break;
+    case DavMethods.DAV_MKCOL:
+      tokens = getSubmittedTokens(request);
+      locks.checkLocks(path, tokens, false);
+      locks.checkLocks(parent, tokens, false);
+      break;
+    case DavMethods.DAV_DELETE:
+    case DavMethods.DAV_MOVE:
+    case DavMethods.DAV_COPY:
+      tokens = getSubmittedTokens(request);
+      if (method != DavMethods.DAV_COPY) {
+        locks.checkLocks(path, tokens, true);
+        locks.checkLocks(parent, tokens, false);
+      }
+      DavResourceLocator destination = request.getDestinationLocator();
+      if (destination != null && method != DavMethods.DAV_DELETE) {
+        String destPath = HDFSLockManager.getKey(getResourceFactory()
+          .createResource(destination, request.getDavSession()));
+        locks.checkLocks(destPath, tokens, true);
+        locks.checkLocks(MemoryLockStore.getParentPath(destPath), tokens,
+          false);
+      }
+      break;
+    default:
+      break;
     }
   }
 
@@ -120,13 +270,117 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
       boolean overwrite) throws DavException {
     try {
       HDFSResource dfsResource = (HDFSResource)resource;
-      dfsResource.setProxyUser(request.getRemoteUser());
+      dfsResource.setProxyUser(getProxyUserCache().get(request));
       return super.validateDestination(dfsResource, request, overwrite);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  public synchronized HDFSLockManager getLockManager() {
+    if (lockManager == null) {
+      lockManager = new HDFSLockManager(getConfiguration());
+    }
+    return lockManager;
+  }
+
+  public SlowRequestLog getSlowRequestLog() {
+    // Called for every request, so avoid taking the servlet lock
+    SlowRequestLog log = slowRequestLog;
+    if (log == null) {
+      synchronized (this) {
+        if (slowRequestLog == null) {
+          slowRequestLog = new SlowRequestLog(getConfiguration());
+        }
+        log = slowRequestLog;
+      }
+    }
+    return log;
+  }
+
+  public AdmissionControl getAdmissionControl() {
+    AdmissionControl control = admissionControl;
+    if (control == null) {
+      synchronized (this) {
+        if (admissionControl == null) {
+          admissionControl = new AdmissionControl(getConfiguration());
+        }
+        control = admissionControl;
+      }
+    }
+    return control;
+  }
+
+  public ProxyUserCache getProxyUserCache() {
+    ProxyUserCache cache = proxyUserCache;
+    if (cache == null) {
+      synchronized (this) {
+        if (proxyUserCache == null) {
+          proxyUserCache = new ProxyUserCache(getConfiguration());
+        }
+        cache = proxyUserCache;
+      }
+    }
+    return cache;
+  }
+
+  public GetFastPath getFastPath() {
+    GetFastPath path = fastPath;
+    if (path == null) {
+      synchronized (this) {
+        if (fastPath == null) {
+          fastPath = new GetFastPath(getConfiguration(), resourcePathPrefix,
+            getProxyUserCache(), getNameNodeThrottle());
+        }
+        path = fastPath;
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Returns the throttle shared by every file system view the servlet
+   * creates, or null if NameNode calls are not limited
+   */
+  public NameNodeThrottle getNameNodeThrottle() {
+    NameNodeThrottle throttle = nameNodeThrottle;
+    if (throttle == null) {
+      synchronized (this) {
+        if (nameNodeThrottle == null) {
+          nameNodeThrottle = new NameNodeThrottle(getConfiguration());
+        }
+        throttle = nameNodeThrottle;
+      }
+    }
+    return throttle.isEnabled() ? throttle : null;
+  }
+
+  public Bulkhead getBulkhead() {
+    Bulkhead b = bulkhead;
+    if (b == null) {
+      synchronized (this) {
+        if (bulkhead == null) {
+          bulkhead = new Bulkhead(getConfiguration());
+        }
+        b = bulkhead;
+      }
+    }
+    return b;
+  }
+
+  /**
+   * Returns the dead property store, or null if PROPPATCH is disabled
+   */
+  public synchronized DeadPropertyStore getPropertyStore() {
+    if (propertyStore == null &&
+        getConfiguration().getBoolean("hadoop.webdav.properties.enabled",
+          true)) {
+      propertyStore = new DeadPropertyStore(getConfiguration(),
+        getNameNodeThrottle());
+    }
+    return propertyStore;
+  }
+
   @Override
   public DavLocatorFactory getLocatorFactory() {
     if (locatorFactory == null) {
@@ -144,7 +398,8 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
   public DavResourceFactory getResourceFactory() {
     if (resourceFactory == null) {
       resourceFactory = new HDFSResourceFactory(getResourceConfig(),
-        getConfiguration());
+        getConfiguration(), getLockManager(), getPropertyStore(),
+        getNameNodeThrottle());
     }
     return resourceFactory;
   }
@@ -196,15 +451,101 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
     }
   }
 
+  @Override
+  public void destroy() {
+    synchronized (this) {
+      if (lockManager != null) {
+        lockManager.close();
+        lockManager = null;
+      }
+      if (propertyStore != null) {
+        propertyStore.close();
+        propertyStore = null;
+      }
+      if (slowRequestLog != null) {
+        slowRequestLog.close();
+        slowRequestLog = null;
+      }
+    }
+    super.destroy();
+  }
+
   @Override
   protected void service(HttpServletRequest request,
-      HttpServletResponse response) throws ServletException, IOException {  
+      HttpServletResponse response) throws ServletException, IOException {
+    AdmissionControl admission = getAdmissionControl();
+    AdmissionControl.Permit permit;
+    try {
+      permit = admission.acquire(request.getRemoteUser() != null ?
+        request.getRemoteUser() : "anonymous@" + request.getRemoteAddr());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      permit = null;
+    }
+    if (permit == null) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Rejecting " + request.getMethod() + " for '" +
+          request.getRequestURI() + "' from " + request.getRemoteUser() +
+          " at " + request.getRemoteAddr() + ", server busy");
+      }
+      admission.reject(response);
+      return;
+    }
+    try {
+      Bulkhead.Partition partition =
+        getBulkhead().getPartition(request.getMethod());
+      boolean entered;
+      try {
+        entered = partition.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        entered = false;
+      }
+      if (!entered) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Rejecting " + request.getMethod() + " for '" +
+            request.getRequestURI() + "' from " + request.getRemoteUser() +
+            " at " + request.getRemoteAddr() + ", " + partition.getName() +
+            " partition full");
+        }
+        admission.reject(response);
+        return;
+      }
+      try {
+        serviceAdmitted(request, response);
+      } finally {
+        partition.release();
+      }
+    } finally {
+      permit.release();
+    }
+  }
+
+  private void serviceAdmitted(HttpServletRequest request,
+      HttpServletResponse response) throws ServletException, IOException {
     if (LOG.isDebugEnabled()) {
       LOG.debug(request.getMethod() + " for '" + request.getRequestURI() +
         "' from " + request.getRemoteUser() + " at " + request.getRemoteAddr());
     }
+    RequestContext context =
+      RequestContext.begin(getMethodScope(request.getMethod()));
+    Object authNanos = request.getAttribute(AuthFilter.AUTH_NANOS_ATTRIBUTE);
+    if (authNanos instanceof Long) {
+      context.setAuthNanos((Long)authNanos);
+    }
+    SlowRequestLog slowLog = getSlowRequestLog();
+    if (slowLog.sample()) {
+      context.enableTrace();
+    }
+    request = TransferMetrics.wrap(request, context);
+    response = TransferMetrics.wrap(response, context);
+    String method = request.getMethod();
     try {
-      super.service(request, response);
+      // Plain file reads skip the generic resource machinery
+      if (!(method.equals("GET") || method.equals("HEAD")) ||
+          !getFastPath().serve(request, response)) {
+        super.service(request, response);
+      }
     } catch (Exception e) {
       if (e instanceof AccessControlException || 
           e.getCause() instanceof AccessControlException) {
@@ -223,6 +564,12 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
               "You do not have permission to access this resource."));
           new WebdavResponseImpl(response).sendMultiStatus(ms);
         }
+      } else if (e instanceof ThrottledException ||
+          e.getCause() instanceof ThrottledException) {
+        LOG.info("Throttled request for '" + request.getRequestURI() +
+          "' from " + request.getRemoteUser() + " at " +
+          request.getRemoteAddr());
+        getAdmissionControl().reject(response);
       } else {
         LOG.warn("Exception processing request for '" +
           request.getRequestURI() + "' from " + request.getRemoteUser() +
@@ -231,7 +578,35 @@ public class HDFSWebDAVServlet extends AbstractWebdavServlet {
         new WebdavResponseImpl(response)
           .sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
+    } finally {
+      getFastPath().invalidate(request);
+      RequestContext.end();
+      TransferMetrics.end(context);
+      getMethodMetrics(context.getMethod()).update(context);
+      slowLog.record(context, request.getRequestURI(), request.getRemoteUser(),
+        request.getRemoteAddr());
+    }
+  }
+
+  /**
+   * Methods unknown to WebDAV are lumped together, so clients cannot create
+   * metrics at will
+   */
+  private static String getMethodScope(String method) {
+    return DavMethods.getMethodCode(method) > 0 ?
+      method.toUpperCase() : "OTHER";
+  }
+
+  private MethodMetrics getMethodMetrics(String method) {
+    MethodMetrics metrics = methodMetrics.get(method);
+    if (metrics == null) {
+      metrics = new MethodMetrics(method);
+      MethodMetrics existing = methodMetrics.putIfAbsent(method, metrics);
+      if (existing != null) {
+        metrics = existing;
+      }
     }
+    return metrics;
   }
 
 }
\ No newline at end of file
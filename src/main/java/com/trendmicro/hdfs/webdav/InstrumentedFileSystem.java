@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Times every metadata and stream setup call made through it, by file
+ * system operation and by the WebDAV method of the request being served.
+ * Each call is also charged to the {@link RequestContext} of the calling
+ * thread, and is held to the rate of the {@link NameNodeThrottle}.
+ * <p>
+ * Instances are cheap views over the cached per-user file system and must
+ * not be closed.
+ */
+public class InstrumentedFileSystem extends FilterFileSystem {
+
+  private static final ConcurrentMap<String, Timer> timers =
+    new ConcurrentHashMap<String, Timer>();
+  private static final ConcurrentMap<String, Counter> failures =
+    new ConcurrentHashMap<String, Counter>();
+
+  /**
+   * Return the instrumented file system for the current user, held to the
+   * given throttle unless it is null
+   */
+  public static InstrumentedFileSystem get(Configuration conf,
+      NameNodeThrottle throttle) throws IOException {
+    return new InstrumentedFileSystem(FileSystem.get(conf), throttle);
+  }
+
+  private final NameNodeThrottle throttle;
+
+  public InstrumentedFileSystem(FileSystem fs) {
+    this(fs, null);
+  }
+
+  public InstrumentedFileSystem(FileSystem fs, NameNodeThrottle throttle) {
+    super(fs);
+    this.throttle = throttle;
+    setConf(fs.getConf());
+  }
+
+  private static Timer getTimer(String op, String method) {
+    String key = op + ' ' + method;
+    Timer timer = timers.get(key);
+    if (timer == null) {
+      timer = Metrics.newTimer(InstrumentedFileSystem.class, op, method,
+        TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      Timer existing = timers.putIfAbsent(key, timer);
+      if (existing != null) {
+        timer = existing;
+      }
+    }
+    return timer;
+  }
+
+  private static Counter getFailures(String op, String method) {
+    String key = op + ' ' + method;
+    Counter counter = failures.get(key);
+    if (counter == null) {
+      counter = Metrics.newCounter(InstrumentedFileSystem.class,
+        op + "-failures", method);
+      Counter existing = failures.putIfAbsent(key, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  private static void record(String op, Path path, long start,
+      boolean failed) {
+    long elapsed = System.nanoTime() - start;
+    RequestContext context = RequestContext.get();
+    String method = RequestContext.NO_METHOD;
+    if (context != null) {
+      context.addNameNodeCall(op, path, elapsed, failed);
+      method = context.getMethod();
+    }
+    getTimer(op, method).update(elapsed, TimeUnit.NANOSECONDS);
+    if (failed) {
+      getFailures(op, method).inc();
+    }
+  }
+
+  /**
+   * Wait for the throttle, if any, before a call. The wait is not counted
+   * as NameNode time.
+   */
+  private void throttle(String op) throws IOException {
+    if (throttle != null) {
+      throttle.acquire(op);
+    }
+  }
+
+  @Override
+  public boolean exists(Path f) throws IOException {
+    // Not left to the superclass, which would count it as getFileStatus
+    throttle("exists");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = fs.exists(f);
+      failed = false;
+      return result;
+    } finally {
+      record("exists", f, start, failed);
+    }
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    throttle("getFileStatus");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FileStatus result = fs.getFileStatus(f);
+      failed = false;
+      return result;
+    } finally {
+      record("getFileStatus", f, start, failed);
+    }
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path f) throws IOException {
+    throttle("listStatus");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FileStatus[] result = fs.listStatus(f);
+      failed = false;
+      return result;
+    } finally {
+      record("listStatus", f, start, failed);
+    }
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    throttle("open");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FSDataInputStream result = fs.open(f, bufferSize);
+      failed = false;
+      return result;
+    } finally {
+      record("open", f, start, failed);
+    }
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission,
+      boolean overwrite, int bufferSize, short replication, long blockSize,
+      Progressable progress) throws IOException {
+    throttle("create");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FSDataOutputStream result = fs.create(f, permission, overwrite,
+        bufferSize, replication, blockSize, progress);
+      failed = false;
+      return result;
+    } finally {
+      record("create", f, start, failed);
+    }
+  }
+
+  @Override
+  public boolean createNewFile(Path f) throws IOException {
+    // Not left to the superclass, which would count exists and create
+    throttle("createNewFile");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = fs.createNewFile(f);
+      failed = false;
+      return result;
+    } finally {
+      record("createNewFile", f, start, failed);
+    }
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    throttle("mkdirs");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = fs.mkdirs(f, permission);
+      failed = false;
+      return result;
+    } finally {
+      record("mkdirs", f, start, failed);
+    }
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    throttle("rename");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = fs.rename(src, dst);
+      failed = false;
+      return result;
+    } finally {
+      record("rename", src, start, failed);
+    }
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    throttle("delete");
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = fs.delete(f, recursive);
+      failed = false;
+      return result;
+    } finally {
+      record("delete", f, start, failed);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The wrapped file system is shared through the FileSystem cache
+  }
+
+}
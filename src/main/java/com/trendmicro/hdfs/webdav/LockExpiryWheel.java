@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jackrabbit.webdav.lock.ActiveLock;
+
+/**
+ * A hashed timer wheel for expiring locks. Each scheduled lock lands in the
+ * bucket of the tick on which it is due, so every tick only touches the locks
+ * that might have expired since the last one instead of scanning all of them.
+ * Locks due more than one revolution out are simply put back into their
+ * bucket until their tick comes around.
+ */
+class LockExpiryWheel implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(LockExpiryWheel.class);
+
+  /**
+   * Callback invoked when a scheduled lock is due. Returns the remaining
+   * timeout in milliseconds if the lock is still live and should be
+   * rescheduled, or a value <= 0 if it is gone.
+   */
+  interface Expirer {
+    long expire(String path, ActiveLock lock);
+  }
+
+  private static class Entry {
+    final String path;
+    final ActiveLock lock;
+    long deadlineTick;
+
+    Entry(String path, ActiveLock lock, long deadlineTick) {
+      this.path = path;
+      this.lock = lock;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final Expirer expirer;
+  private final long tickMs;
+  private final ConcurrentLinkedQueue<Entry>[] buckets;
+  private final long startTime;
+  private volatile long currentTick;
+  private volatile boolean running = true;
+  private final Thread thread;
+
+  @SuppressWarnings("unchecked")
+  LockExpiryWheel(Expirer expirer, long tickMs, int size) {
+    this.expirer = expirer;
+    this.tickMs = Math.max(1, tickMs);
+    this.buckets = new ConcurrentLinkedQueue[Math.max(1, size)];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new ConcurrentLinkedQueue<Entry>();
+    }
+    this.startTime = System.currentTimeMillis();
+    this.thread = new Thread(this, "WebDAV lock expiry");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  void schedule(String path, ActiveLock lock, long timeoutMs) {
+    long deadline = System.currentTimeMillis() + Math.max(0, timeoutMs);
+    long tick = (deadline - startTime + tickMs - 1) / tickMs;
+    if (tick <= currentTick) {
+      tick = currentTick + 1;
+    }
+    add(new Entry(path, lock, tick));
+  }
+
+  private void add(Entry entry) {
+    buckets[(int)(entry.deadlineTick % buckets.length)].add(entry);
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      long next = startTime + (currentTick + 1) * tickMs;
+      long sleep = next - System.currentTimeMillis();
+      if (sleep > 0) try {
+        Thread.sleep(sleep);
+        continue;
+      } catch (InterruptedException e) {
+        continue;
+      }
+      long tick = ++currentTick;
+      ConcurrentLinkedQueue<Entry> bucket =
+        buckets[(int)(tick % buckets.length)];
+      // Only drain what is in the bucket now; entries put back for a later
+      // revolution must not be seen again during this tick
+      int n = bucket.size();
+      for (int i = 0; i < n; i++) {
+        Entry entry = bucket.poll();
+        if (entry == null) {
+          break;
+        }
+        if (entry.deadlineTick > tick) {
+          bucket.add(entry);
+          continue;
+        }
+        try {
+          long remaining = expirer.expire(entry.path, entry.lock);
+          if (remaining > 0) {
+            schedule(entry.path, entry.lock, remaining);
+          }
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to expire lock on '" + entry.path + "'", e);
+        }
+      }
+    }
+  }
+
+  void close() {
+    running = false;
+    thread.interrupt();
+  }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage for the locks handed out by {@link HDFSLockManager}.
+ * <p>
+ * Implementations are selected with <tt>hadoop.webdav.lock.store.class</tt>
+ * and must have a public constructor taking a Hadoop
+ * <tt>Configuration</tt>. Paths are absolute, '/' separated, and never end
+ * with a '/' except for the root.
+ */
+public interface LockStore {
+
+  /**
+   * Return the live lock applying to the path: either the lock held on the
+   * path itself, or a depth infinity lock held on one of its ancestors.
+   * Returns null if there is none.
+   */
+  PathLock getLock(String path) throws IOException;
+
+  /**
+   * Return the live locks held on paths below the given one.
+   */
+  List<PathLock> getLocksBelow(String path) throws IOException;
+
+  /**
+   * Record the lock unless it conflicts with a live lock on the same path,
+   * a depth infinity lock on an ancestor, or, if the lock is itself depth
+   * infinity, any lock below it. Returns false on conflict.
+   */
+  boolean addLock(PathLock lock) throws IOException;
+
+  /**
+   * Persist the current timeout of a lock previously added.
+   */
+  void refreshLock(PathLock lock) throws IOException;
+
+  /**
+   * Remove a lock previously added. Returns false if it was no longer held.
+   */
+  boolean removeLock(PathLock lock) throws IOException;
+
+  void close() throws IOException;
+
+}
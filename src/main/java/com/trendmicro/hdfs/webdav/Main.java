@@ -36,13 +36,18 @@ import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import org.mortbay.jetty.AbstractConnector;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.servlet.Context;
 import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.thread.ThreadPool;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.reporting.GangliaReporter;
 import com.yammer.metrics.web.DefaultWebappMetricsFilter;
 
@@ -50,6 +55,9 @@ public class Main {
 
   private static final Log LOG = LogFactory.getLog(Main.class);
 
+  public static final String SERVER_PREFIX = "hadoop.webdav.server.";
+  public static final String THREAD_MODE_KEY = SERVER_PREFIX + "thread.mode";
+
   private static void printUsageAndExit(Options options, int exitCode) {
     HelpFormatter formatter = new HelpFormatter();
     formatter.printHelp("Usage: webdav [options]", "", options,
@@ -65,6 +73,157 @@ public class Main {
       conf.getInt("hadoop.webdav.port", 8080));
   }
 
+  private static void addThreadPoolGauges(final QueuedThreadPool pool) {
+    Metrics.newGauge(Main.class, "threads", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pool.getThreads();
+      }
+    });
+    Metrics.newGauge(Main.class, "idle-threads", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pool.getIdleThreads();
+      }
+    });
+    Metrics.newGauge(Main.class, "thread-utilization", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return (double)(pool.getThreads() - pool.getIdleThreads()) /
+          pool.getMaxThreads();
+      }
+    });
+    Metrics.newGauge(Main.class, "queued-requests", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pool.getQueueSize();
+      }
+    });
+  }
+
+  private static void addVirtualThreadGauges(final ThreadPool pool) {
+    Metrics.newGauge(Main.class, "threads", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pool.getThreads();
+      }
+    });
+  }
+
+  /**
+   * Create the request thread pool for the configured mode, "pooled" for
+   * a pool of platform threads or "virtual" for a virtual thread per job.
+   * Virtual mode falls back to pooled on runtimes without virtual threads.
+   */
+  public static ThreadPool createThreadPool(Configuration conf) {
+    String mode = conf.get(THREAD_MODE_KEY, "pooled");
+    if (mode.equalsIgnoreCase("virtual")) {
+      if (VirtualThreadPool.isSupported()) {
+        return new VirtualThreadPool("webdav");
+      }
+      LOG.warn("Virtual threads need Java 21 or later, running on Java " +
+        System.getProperty("java.version") + " with pooled threads");
+    } else if (!mode.equalsIgnoreCase("pooled")) {
+      LOG.warn("Unknown " + THREAD_MODE_KEY + " '" + mode +
+        "', using pooled threads");
+    }
+    QueuedThreadPool threadPool = new QueuedThreadPool();
+    threadPool.setName("webdav");
+    threadPool.setMinThreads(conf.getInt(SERVER_PREFIX + "min.threads", 16));
+    threadPool.setMaxThreads(conf.getInt(SERVER_PREFIX + "max.threads", 256));
+    threadPool.setMaxIdleTimeMs(conf.getInt(SERVER_PREFIX +
+      "thread.max.idle.ms", 60000));
+    // Below this many idle threads the server counts as low on resources
+    threadPool.setLowThreads(conf.getInt(SERVER_PREFIX + "low.threads", 16));
+    return threadPool;
+  }
+
+  /**
+   * Return the most server threads requests may hold while waiting for or
+   * holding admission and a bulkhead partition, or -1 if unbounded. An
+   * admitted request is either in the bulkhead or being turned away by it.
+   */
+  static int getRequestThreads(AdmissionControl admission,
+      Bulkhead bulkhead) {
+    int admitted = admission.getMaxConcurrent();
+    int partitions = bulkhead.getCapacity();
+    int held;
+    if (admitted < 0) {
+      held = partitions;
+    } else if (partitions < 0) {
+      held = admitted;
+    } else {
+      held = Math.min(admitted, partitions);
+    }
+    return held < 0 ? -1 : held + admission.getQueueSize();
+  }
+
+  /**
+   * Create the WebDAV connector, tuned by the hadoop.webdav.server.*
+   * properties
+   */
+  public static SelectChannelConnector createConnector(Configuration conf,
+      InetSocketAddress addr) {
+    return configureConnector(conf, new SelectChannelConnector(), addr);
+  }
+
+  private static SelectChannelConnector configureConnector(
+      Configuration conf, SelectChannelConnector connector,
+      InetSocketAddress addr) {
+    connector.setPort(addr.getPort());
+    connector.setHost(addr.getHostName());
+    connector.setAcceptors(conf.getInt(SERVER_PREFIX + "acceptors",
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 4)));
+    connector.setAcceptQueueSize(conf.getInt(SERVER_PREFIX +
+      "accept.queue.size", 256));
+    connector.setMaxIdleTime(conf.getInt(SERVER_PREFIX + "max.idle.ms",
+      30000));
+    connector.setHeaderBufferSize(conf.getInt(SERVER_PREFIX +
+      "header.buffer.size", 8192));
+    connector.setRequestBufferSize(conf.getInt(SERVER_PREFIX +
+      "request.buffer.size", 16384));
+    connector.setResponseBufferSize(conf.getInt(SERVER_PREFIX +
+      "response.buffer.size", 65536));
+    // Under pressure, idle connections are dropped sooner
+    connector.setLowResourcesConnections(conf.getInt(SERVER_PREFIX +
+      "low.resources.connections", 10000));
+    connector.setLowResourcesMaxIdleTime(conf.getInt(SERVER_PREFIX +
+      "low.resources.max.idle.ms", 5000));
+    return connector;
+  }
+
+  /**
+   * Return the servlet context options. The gateway keeps no per-client
+   * state in servlet sessions, so none are created unless enabled with
+   * hadoop.webdav.server.sessions.
+   */
+  public static int getContextOptions(Configuration conf) {
+    return conf.getBoolean(SERVER_PREFIX + "sessions", false) ?
+      Context.SESSIONS : Context.NO_SESSIONS;
+  }
+
+  private static void logServerSettings(SelectChannelConnector connector,
+      ThreadPool threadPool) {
+    LOG.info("Connector: acceptors=" + connector.getAcceptors() +
+      " acceptQueueSize=" + connector.getAcceptQueueSize() +
+      " maxIdleTime=" + connector.getMaxIdleTime() + "ms" +
+      " headerBufferSize=" + connector.getHeaderBufferSize() +
+      " requestBufferSize=" + connector.getRequestBufferSize() +
+      " responseBufferSize=" + connector.getResponseBufferSize() +
+      " lowResourcesConnections=" + connector.getLowResourcesConnections() +
+      " lowResourcesMaxIdleTime=" + connector.getLowResourcesMaxIdleTime() +
+      "ms");
+    if (threadPool instanceof QueuedThreadPool) {
+      QueuedThreadPool pool = (QueuedThreadPool)threadPool;
+      LOG.info("Thread pool: minThreads=" + pool.getMinThreads() +
+        " maxThreads=" + pool.getMaxThreads() +
+        " maxIdleTime=" + pool.getMaxIdleTimeMs() + "ms" +
+        " lowThreads=" + pool.getLowThreads());
+    } else {
+      LOG.info("Thread pool: " + threadPool.getClass().getSimpleName());
+    }
+  }
+
   public static void main(String[] args) {
 
     HDFSWebDAVServlet servlet = HDFSWebDAVServlet.getServlet();
@@ -79,6 +238,8 @@ public class Main {
       "Address or hostname to bind to [default: 0.0.0.0]");
     options.addOption("g", "ganglia", true,
       "Send Ganglia metrics to host:port [default: none]");
+    options.addOption("m", "metrics-port", true,
+      "Serve metrics for scraping on this port [default: none]");
 
     CommandLine cmd = null;
     try {
@@ -101,6 +262,11 @@ public class Main {
         Integer.valueOf(cmd.getOptionValue('p')));
     }
 
+    if (cmd.hasOption('m')) {
+      conf.setInt("hadoop.webdav.metrics.port",
+        Integer.valueOf(cmd.getOptionValue('m')));
+    }
+
     String gangliaHost = null;
     int gangliaPort = 8649;
     if (cmd.hasOption('g')) {
@@ -138,15 +304,57 @@ public class Main {
     server.setSendDateHeader(false);
     server.setStopAtShutdown(true);
 
+    ThreadPool threadPool = createThreadPool(conf);
+    server.setThreadPool(threadPool);
+
     // Set up connector
-    Connector connector = new SelectChannelConnector();
-    connector.setPort(addr.getPort());
-    connector.setHost(addr.getHostName());
+    SelectChannelConnector connector = createConnector(conf, addr);
     server.addConnector(connector);
     LOG.info("Listening on " + addr);
 
+    // Set up the TLS connector, if enabled
+    int httpsPort = conf.getInt(TlsConnector.PORT_KEY, -1);
+    if (httpsPort >= 0) {
+      InetSocketAddress httpsAddr =
+        new InetSocketAddress(addr.getHostName(), httpsPort);
+      server.addConnector(configureConnector(conf, new TlsConnector(conf),
+        httpsAddr));
+      LOG.info("Listening for HTTPS on " + httpsAddr);
+    }
+
+    if (threadPool instanceof QueuedThreadPool) {
+      QueuedThreadPool queuedPool = (QueuedThreadPool)threadPool;
+      // Requests queued for admission or for a bulkhead partition hold
+      // pool threads while they wait. Leave room for all of them and the
+      // acceptors, which run on the same pool, so overload is answered
+      // with 503 rather than left in Jetty's unbounded job queue.
+      int capacity = getRequestThreads(servlet.getAdmissionControl(),
+        servlet.getBulkhead());
+      if (capacity < 0) {
+        LOG.warn("Admission control and the bulkhead do not both limit " +
+          "requests, the thread pool cannot be sized to turn overload " +
+          "away with 503");
+      } else {
+        for (Connector c: server.getConnectors()) {
+          if (c instanceof AbstractConnector) {
+            capacity += ((AbstractConnector)c).getAcceptors();
+          }
+        }
+        if (capacity > queuedPool.getMaxThreads()) {
+          LOG.info("Growing the thread pool from " +
+            queuedPool.getMaxThreads() + " to " + capacity +
+            " threads to hold the admission queue and bulkhead");
+          queuedPool.setMaxThreads(capacity);
+        }
+      }
+      addThreadPoolGauges(queuedPool);
+    } else {
+      addVirtualThreadGauges(threadPool);
+    }
+    logServerSettings(connector, threadPool);
+
     // Set up context
-    Context context = new Context(server, "/", Context.SESSIONS);
+    Context context = new Context(server, "/", getContextOptions(conf));
         // WebDAV servlet
     ServletHolder servletHolder = new ServletHolder(servlet);
     servletHolder.setInitParameter("authenticate-header",
@@ -164,8 +372,38 @@ public class Main {
       GangliaReporter.enable(1, TimeUnit.MINUTES, gangliaHost, gangliaPort);
     }
 
+    // Set up the metrics endpoint, on its own listener and threads so it
+    // stays responsive when the WebDAV thread pool is saturated
+    Server metricsServer = null;
+    int metricsPort = conf.getInt("hadoop.webdav.metrics.port", -1);
+    if (metricsPort >= 0) {
+      metricsServer = new Server();
+      metricsServer.setSendServerVersion(false);
+      metricsServer.setStopAtShutdown(true);
+      QueuedThreadPool metricsPool = new QueuedThreadPool(4);
+      metricsPool.setName("metrics");
+      metricsServer.setThreadPool(metricsPool);
+      Connector metricsConnector = new SelectChannelConnector();
+      metricsConnector.setPort(metricsPort);
+      metricsConnector.setHost(conf.get("hadoop.webdav.metrics.bind.address",
+        addr.getHostName()));
+      metricsServer.addConnector(metricsConnector);
+      Context metricsContext = new Context(metricsServer, "/",
+        Context.NO_SESSIONS);
+      metricsContext.addServlet(new ServletHolder(new MetricsServlet()),
+        "/metrics/*");
+      metricsContext.addServlet(new ServletHolder(new MetricsServlet()),
+        "/metrics.json");
+      metricsServer.setHandler(metricsContext);
+      LOG.info("Serving metrics on " + metricsConnector.getHost() + ":" +
+        metricsPort);
+    }
+
     // Start and join the server thread    
     try {
+      if (metricsServer != null) {
+        metricsServer.start();
+      }
       server.start();
       server.join();
     } catch (Exception e) {
@@ -0,0 +1,316 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.jackrabbit.webdav.lock.ActiveLock;
+
+/**
+ * Process local lock store, the default.
+ * <p>
+ * Locks are kept in a concurrent map sorted by path, so lookups never block
+ * and the locks below a path are found by a range of the map, at a cost
+ * that grows with that subtree and not with every lock held.
+ * Mutations take the stripe of the full path exclusively and the stripes
+ * of its ancestors shared. Two locks can only conflict if one path is an
+ * ancestor of the other, and then both operations meet on the ancestor's
+ * stripe, one of them exclusively. Operations on unrelated paths under a
+ * common parent, such as every home directory below /user, only share the
+ * parent's stripe and do not wait for each other.
+ * <p>
+ * Depth infinity locks are found by walking the ancestors of a path, which
+ * is skipped entirely while no deep locks are held. Per-ancestor counters
+ * spare even the range lookup while nothing is locked below a path.
+ * Expired locks are reaped by a {@link LockExpiryWheel}.
+ */
+public class MemoryLockStore implements LockStore {
+
+  private static final Log LOG = LogFactory.getLog(MemoryLockStore.class);
+
+  public static final String STRIPES_KEY = "hadoop.webdav.lock.stripes";
+  public static final int DEFAULT_STRIPES = 64;
+  public static final String WHEEL_TICK_KEY =
+    "hadoop.webdav.lock.expiry.tick.ms";
+  public static final long DEFAULT_WHEEL_TICK = 1000L;
+  public static final String WHEEL_SIZE_KEY =
+    "hadoop.webdav.lock.expiry.wheel.size";
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private final ConcurrentNavigableMap<String, PathLock> locksByPath;
+  private final ConcurrentMap<String, AtomicInteger> descendantCounts;
+  private final AtomicInteger deepLocks = new AtomicInteger();
+  private final ReentrantReadWriteLock[] stripes;
+  private final LockExpiryWheel wheel;
+
+  public MemoryLockStore(Configuration conf) {
+    int n = conf.getInt(STRIPES_KEY, DEFAULT_STRIPES);
+    // Round up to a power of two so a mask can pick the stripe
+    int size = 1;
+    while (size < n) {
+      size <<= 1;
+    }
+    stripes = new ReentrantReadWriteLock[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+    locksByPath = new ConcurrentSkipListMap<String, PathLock>();
+    descendantCounts =
+      new ConcurrentHashMap<String, AtomicInteger>(1024, 0.75f, size);
+    wheel = new LockExpiryWheel(new LockExpiryWheel.Expirer() {
+        public long expire(String path, ActiveLock lock) {
+          return expireIfDue((PathLock)lock);
+        }
+      },
+      conf.getLong(WHEEL_TICK_KEY, DEFAULT_WHEEL_TICK),
+      conf.getInt(WHEEL_SIZE_KEY, DEFAULT_WHEEL_SIZE));
+  }
+
+  static String getParentPath(String path) {
+    int idx = path.lastIndexOf('/');
+    if (idx <= 0) {
+      return "/";
+    }
+    return path.substring(0, idx);
+  }
+
+  private int getStripeIndex(String path) {
+    int h = path.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (stripes.length - 1);
+  }
+
+  /**
+   * Take the stripe of the path exclusively and those of its ancestors
+   * shared, in ascending stripe order so that concurrent callers cannot
+   * deadlock. Returns the locks taken, for {@link #unlockStripes(Lock[])}.
+   */
+  private Lock[] lockStripes(String path) {
+    // Stripe index to whether it must be taken exclusively
+    TreeMap<Integer, Boolean> indexes = new TreeMap<Integer, Boolean>();
+    indexes.put(getStripeIndex(path), Boolean.TRUE);
+    String p = path;
+    while (!"/".equals(p)) {
+      p = getParentPath(p);
+      int i = getStripeIndex(p);
+      if (!indexes.containsKey(i)) {
+        indexes.put(i, Boolean.FALSE);
+      }
+    }
+    Lock[] locks = new Lock[indexes.size()];
+    int n = 0;
+    for (Map.Entry<Integer, Boolean> e: indexes.entrySet()) {
+      ReentrantReadWriteLock stripe = stripes[e.getKey()];
+      locks[n] = e.getValue() ? stripe.writeLock() : stripe.readLock();
+      locks[n++].lock();
+    }
+    return locks;
+  }
+
+  private static void unlockStripes(Lock[] locks) {
+    for (int i = locks.length - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+
+  private void incrementDescendants(String path) {
+    while (!"/".equals(path)) {
+      path = getParentPath(path);
+      while (true) {
+        AtomicInteger count = descendantCounts.get(path);
+        if (count == null) {
+          count = descendantCounts.putIfAbsent(path, new AtomicInteger(1));
+          if (count == null) {
+            break;
+          }
+        }
+        int c = count.get();
+        if (c == 0) {
+          // Being retired by a concurrent decrement, help remove it and retry
+          descendantCounts.remove(path, count);
+          continue;
+        }
+        if (count.compareAndSet(c, c + 1)) {
+          break;
+        }
+      }
+    }
+  }
+
+  private void decrementDescendants(String path) {
+    while (!"/".equals(path)) {
+      path = getParentPath(path);
+      AtomicInteger count = descendantCounts.get(path);
+      if (count != null && count.decrementAndGet() == 0) {
+        descendantCounts.remove(path, count);
+      }
+    }
+  }
+
+  private boolean hasDescendantLocks(String path) {
+    AtomicInteger count = descendantCounts.get(path);
+    return count != null && count.get() > 0;
+  }
+
+  /**
+   * Remove the lock if it is still registered for its path. Caller must
+   * hold the stripe for the path.
+   */
+  private boolean remove(PathLock lock) {
+    String path = lock.getPath();
+    if (!locksByPath.remove(path, lock)) {
+      return false;
+    }
+    decrementDescendants(path);
+    if (lock.isDeep()) {
+      deepLocks.decrementAndGet();
+    }
+    return true;
+  }
+
+  private long expireIfDue(PathLock lock) {
+    String path = lock.getPath();
+    if (locksByPath.get(path) != lock) {
+      return 0;
+    }
+    if (!lock.isExpired()) {
+      return lock.getTimeout();
+    }
+    Lock[] held = lockStripes(path);
+    try {
+      if (remove(lock) && LOG.isDebugEnabled()) {
+        LOG.debug("Lock " + lock.getToken() + " on '" + path + "' expired");
+      }
+    } finally {
+      unlockStripes(held);
+    }
+    return 0;
+  }
+
+  private PathLock getLiveLock(String path) {
+    PathLock lock = locksByPath.get(path);
+    // Expired locks are left for the wheel to reap, taking stripes here
+    // could deadlock against a caller already holding one
+    if (lock != null && lock.isExpired()) {
+      return null;
+    }
+    return lock;
+  }
+
+  int size() {
+    return locksByPath.size();
+  }
+
+  @Override
+  public PathLock getLock(String path) {
+    PathLock lock = getLiveLock(path);
+    if (lock != null || deepLocks.get() == 0) {
+      return lock;
+    }
+    while (!"/".equals(path)) {
+      path = getParentPath(path);
+      lock = getLiveLock(path);
+      if (lock != null) {
+        return lock.isDeep() ? lock : null;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public List<PathLock> getLocksBelow(String path) {
+    List<PathLock> locks = new ArrayList<PathLock>();
+    // The counters spare the scan in the common case of nothing below
+    if (!hasDescendantLocks(path)) {
+      return locks;
+    }
+    String prefix = "/".equals(path) ? "/" : path + "/";
+    for (PathLock lock:
+        locksByPath.subMap(prefix, prefix + '\uffff').values()) {
+      if (!lock.getPath().equals(path) && !lock.isExpired()) {
+        locks.add(lock);
+      }
+    }
+    return locks;
+  }
+
+  @Override
+  public boolean addLock(PathLock lock) {
+    String path = lock.getPath();
+    Lock[] held = lockStripes(path);
+    try {
+      if (getLock(path) != null) {
+        return false;
+      }
+      // The counters include expired locks not yet reaped, so confirm
+      if (lock.isDeep() && !getLocksBelow(path).isEmpty()) {
+        return false;
+      }
+      PathLock expired = locksByPath.get(path);
+      if (expired != null) {
+        remove(expired);
+      }
+      locksByPath.put(path, lock);
+      incrementDescendants(path);
+      if (lock.isDeep()) {
+        deepLocks.incrementAndGet();
+      }
+    } finally {
+      unlockStripes(held);
+    }
+    wheel.schedule(path, lock, lock.getTimeout());
+    return true;
+  }
+
+  @Override
+  public void refreshLock(PathLock lock) {
+    // The expiry wheel picks up the new timeout when the old deadline comes
+    // around, so a refresh does not need to touch it
+  }
+
+  @Override
+  public boolean removeLock(PathLock lock) {
+    Lock[] held = lockStripes(lock.getPath());
+    try {
+      return remove(lock);
+    } finally {
+      unlockStripes(held);
+    }
+  }
+
+  @Override
+  public void close() {
+    wheel.close();
+  }
+
+}
@@ -0,0 +1,419 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Renders the default metrics registry for scraping, in the Prometheus text
+ * exposition format, or as JSON when the path ends with ".json" or the
+ * request has <code>format=json</code>.
+ * <p>
+ * Metric families are named after the type and name of the metric, and
+ * the scope, usually the WebDAV method, becomes a label. Durations are
+ * reported in seconds and rates per second.
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String PREFIX = "webdav_";
+  private static final double[] QUANTILES = {
+    0.5, 0.75, 0.95, 0.99, 0.999
+  };
+
+  @Override
+  protected void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws ServletException, IOException {
+    boolean json = "json".equals(request.getParameter("format")) ||
+      request.getRequestURI().endsWith(".json");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setHeader("Cache-Control", "no-cache");
+    if (json) {
+      response.setContentType("application/json");
+      writeJson(response.getWriter());
+    } else {
+      response.setContentType("text/plain; version=0.0.4");
+      writePrometheus(response.getWriter());
+    }
+  }
+
+  private static String sanitize(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+        sb.append(c);
+      } else if (c >= 'A' && c <= 'Z') {
+        sb.append(Character.toLowerCase(c));
+      } else {
+        sb.append('_');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String getFamily(MetricName name) {
+    return PREFIX + sanitize(name.getType()) + "_" + sanitize(name.getName());
+  }
+
+  private static double toSeconds(double value, TimeUnit unit) {
+    return value * unit.toNanos(1) / 1e9;
+  }
+
+  private static double perSecond(double rate, TimeUnit unit) {
+    return rate / (unit.toNanos(1) / 1e9);
+  }
+
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+      case '\\':
+        sb.append('\\').append(c);
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int)c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    return Double.toString(value);
+  }
+
+  private static Double getGaugeValue(Gauge<?> gauge) {
+    Object value = gauge.value();
+    if (value instanceof Number) {
+      return ((Number)value).doubleValue();
+    }
+    if (value instanceof Boolean) {
+      return ((Boolean)value) ? 1.0 : 0.0;
+    }
+    return null;
+  }
+
+  // Prometheus text format
+
+  private static void sample(PrintWriter out, String family, MetricName name,
+      String label, String labelValue, double value) {
+    out.print(family);
+    boolean scoped = name.hasScope();
+    if (scoped || label != null) {
+      out.print('{');
+      if (scoped) {
+        out.print("scope=\"");
+        out.print(escape(name.getScope()));
+        out.print('"');
+      }
+      if (label != null) {
+        if (scoped) {
+          out.print(',');
+        }
+        out.print(label);
+        out.print("=\"");
+        out.print(labelValue);
+        out.print('"');
+      }
+      out.print('}');
+    }
+    out.print(' ');
+    out.print(format(value));
+    out.print('\n');
+  }
+
+  private static void type(PrintWriter out, String family, String type) {
+    out.print("# TYPE ");
+    out.print(family);
+    out.print(' ');
+    out.print(type);
+    out.print('\n');
+  }
+
+  private static void writeRates(PrintWriter out, String family,
+      List<Map.Entry<MetricName, Metric>> metrics) {
+    type(out, family + "_total", "counter");
+    for (Map.Entry<MetricName, Metric> e: metrics) {
+      sample(out, family + "_total", e.getKey(), null, null,
+        ((Metered)e.getValue()).count());
+    }
+    type(out, family + "_rate1m", "gauge");
+    for (Map.Entry<MetricName, Metric> e: metrics) {
+      Metered metered = (Metered)e.getValue();
+      sample(out, family + "_rate1m", e.getKey(), null, null,
+        perSecond(metered.oneMinuteRate(), metered.rateUnit()));
+    }
+  }
+
+  /**
+   * Return the kind of a metric, which decides how it is written
+   */
+  private static String getKind(Metric metric) {
+    // Timers are metered too, so they are told apart first
+    if (metric instanceof Timer) {
+      return "timer";
+    } else if (metric instanceof Metered) {
+      return "meter";
+    } else if (metric instanceof Histogram) {
+      return "histogram";
+    } else if (metric instanceof Counter) {
+      return "counter";
+    } else if (metric instanceof Gauge<?>) {
+      return "gauge";
+    }
+    return null;
+  }
+
+  /**
+   * Write a family of metrics that are all of the same kind
+   */
+  private static void writeFamily(PrintWriter out, String family,
+      List<Map.Entry<MetricName, Metric>> metrics) {
+    Metric first = metrics.get(0).getValue();
+    if (first instanceof Timer) {
+      String seconds = family + "_seconds";
+      type(out, seconds, "summary");
+      for (Map.Entry<MetricName, Metric> e: metrics) {
+        Timer timer = (Timer)e.getValue();
+        TimeUnit unit = timer.durationUnit();
+        Snapshot snapshot = timer.getSnapshot();
+        for (double q: QUANTILES) {
+          sample(out, seconds, e.getKey(), "quantile", Double.toString(q),
+            toSeconds(snapshot.getValue(q), unit));
+        }
+        sample(out, seconds + "_sum", e.getKey(), null, null,
+          toSeconds(timer.sum(), unit));
+        sample(out, seconds + "_count", e.getKey(), null, null,
+          timer.count());
+      }
+      type(out, family + "_rate1m", "gauge");
+      for (Map.Entry<MetricName, Metric> e: metrics) {
+        Timer timer = (Timer)e.getValue();
+        sample(out, family + "_rate1m", e.getKey(), null, null,
+          perSecond(timer.oneMinuteRate(), timer.rateUnit()));
+      }
+    } else if (first instanceof Metered) {
+      writeRates(out, family, metrics);
+    } else if (first instanceof Histogram) {
+      type(out, family, "summary");
+      for (Map.Entry<MetricName, Metric> e: metrics) {
+        Histogram histogram = (Histogram)e.getValue();
+        Snapshot snapshot = histogram.getSnapshot();
+        for (double q: QUANTILES) {
+          sample(out, family, e.getKey(), "quantile", Double.toString(q),
+            snapshot.getValue(q));
+        }
+        sample(out, family + "_sum", e.getKey(), null, null,
+          histogram.sum());
+        sample(out, family + "_count", e.getKey(), null, null,
+          histogram.count());
+      }
+    } else if (first instanceof Counter) {
+      type(out, family, "gauge");
+      for (Map.Entry<MetricName, Metric> e: metrics) {
+        sample(out, family, e.getKey(), null, null,
+          ((Counter)e.getValue()).count());
+      }
+    } else if (first instanceof Gauge<?>) {
+      type(out, family, "gauge");
+      for (Map.Entry<MetricName, Metric> e: metrics) {
+        Double value = getGaugeValue((Gauge<?>)e.getValue());
+        if (value != null) {
+          sample(out, family, e.getKey(), null, null, value);
+        }
+      }
+    }
+  }
+
+  private static void writePrometheus(PrintWriter out) {
+    // Samples of one family must be contiguous, so group the registry by
+    // family first
+    SortedMap<String, List<Map.Entry<MetricName, Metric>>> families =
+      new TreeMap<String, List<Map.Entry<MetricName, Metric>>>();
+    for (Map.Entry<MetricName, Metric> e:
+        Metrics.defaultRegistry().allMetrics().entrySet()) {
+      String family = getFamily(e.getKey());
+      List<Map.Entry<MetricName, Metric>> list = families.get(family);
+      if (list == null) {
+        list = new ArrayList<Map.Entry<MetricName, Metric>>();
+        families.put(family, list);
+      }
+      list.add(e);
+    }
+    for (Map.Entry<String, List<Map.Entry<MetricName, Metric>>> f:
+        families.entrySet()) {
+      // Metrics of different classes may share a type and name but not a
+      // kind, those are split into a family per kind
+      SortedMap<String, List<Map.Entry<MetricName, Metric>>> kinds =
+        new TreeMap<String, List<Map.Entry<MetricName, Metric>>>();
+      for (Map.Entry<MetricName, Metric> e: f.getValue()) {
+        String kind = getKind(e.getValue());
+        if (kind == null) {
+          continue;
+        }
+        List<Map.Entry<MetricName, Metric>> list = kinds.get(kind);
+        if (list == null) {
+          list = new ArrayList<Map.Entry<MetricName, Metric>>();
+          kinds.put(kind, list);
+        }
+        list.add(e);
+      }
+      for (Map.Entry<String, List<Map.Entry<MetricName, Metric>>> k:
+          kinds.entrySet()) {
+        writeFamily(out, kinds.size() > 1 ? f.getKey() + "_" + k.getKey() :
+          f.getKey(), k.getValue());
+      }
+    }
+    out.flush();
+  }
+
+  // JSON
+
+  private static void field(PrintWriter out, String name, double value,
+      boolean last) {
+    out.print('"');
+    out.print(name);
+    out.print("\":");
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      out.print("null");
+    } else {
+      out.print(value);
+    }
+    if (!last) {
+      out.print(',');
+    }
+  }
+
+  private static void writeSnapshot(PrintWriter out, Snapshot snapshot,
+      double scale) {
+    field(out, "p50", snapshot.getMedian() * scale, false);
+    field(out, "p75", snapshot.get75thPercentile() * scale, false);
+    field(out, "p95", snapshot.get95thPercentile() * scale, false);
+    field(out, "p99", snapshot.get99thPercentile() * scale, false);
+    field(out, "p999", snapshot.get999thPercentile() * scale, false);
+  }
+
+  private static void writeJson(PrintWriter out) {
+    SortedMap<String, Metric> metrics = new TreeMap<String, Metric>();
+    for (Map.Entry<MetricName, Metric> e:
+        Metrics.defaultRegistry().allMetrics().entrySet()) {
+      MetricName name = e.getKey();
+      metrics.put(name.getGroup() + "." + name.getType() + "." +
+        name.getName() + (name.hasScope() ? "." + name.getScope() : ""),
+        e.getValue());
+    }
+    out.print('{');
+    boolean firstMetric = true;
+    for (Map.Entry<String, Metric> e: metrics.entrySet()) {
+      Metric metric = e.getValue();
+      if (metric instanceof Gauge<?> &&
+          getGaugeValue((Gauge<?>)metric) == null) {
+        continue;
+      }
+      if (!firstMetric) {
+        out.print(',');
+      }
+      firstMetric = false;
+      out.print('"');
+      out.print(escape(e.getKey()));
+      out.print("\":{");
+      if (metric instanceof Timer) {
+        Timer timer = (Timer)metric;
+        double scale = toSeconds(1, timer.durationUnit());
+        out.print("\"kind\":\"timer\",");
+        field(out, "count", timer.count(), false);
+        field(out, "rate1m", perSecond(timer.oneMinuteRate(),
+          timer.rateUnit()), false);
+        field(out, "min", timer.min() * scale, false);
+        field(out, "mean", timer.mean() * scale, false);
+        writeSnapshot(out, timer.getSnapshot(), scale);
+        field(out, "max", timer.max() * scale, true);
+      } else if (metric instanceof Metered) {
+        Metered meter = (Metered)metric;
+        out.print("\"kind\":\"meter\",");
+        field(out, "count", meter.count(), false);
+        field(out, "rate1m", perSecond(meter.oneMinuteRate(),
+          meter.rateUnit()), false);
+        field(out, "rate5m", perSecond(meter.fiveMinuteRate(),
+          meter.rateUnit()), false);
+        field(out, "rate15m", perSecond(meter.fifteenMinuteRate(),
+          meter.rateUnit()), true);
+      } else if (metric instanceof Histogram) {
+        Histogram histogram = (Histogram)metric;
+        out.print("\"kind\":\"histogram\",");
+        field(out, "count", histogram.count(), false);
+        field(out, "sum", histogram.sum(), false);
+        field(out, "min", histogram.min(), false);
+        field(out, "mean", histogram.mean(), false);
+        writeSnapshot(out, histogram.getSnapshot(), 1);
+        field(out, "max", histogram.max(), true);
+      } else if (metric instanceof Counter) {
+        out.print("\"kind\":\"counter\",");
+        field(out, "value", ((Counter)metric).count(), true);
+      } else if (metric instanceof Gauge<?>) {
+        out.print("\"kind\":\"gauge\",");
+        field(out, "value", getGaugeValue((Gauge<?>)metric), true);
+      } else {
+        out.print("\"kind\":\"unknown\"");
+      }
+      out.print('}');
+    }
+    out.print("}\n");
+    out.flush();
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import com.google.common.collect.MapMaker;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Caps the rate of NameNode calls the gateway makes, overall and per user,
+ * with token buckets. A call finding a bucket empty waits briefly for a
+ * token and is otherwise refused with a {@link ThrottledException}, which
+ * the servlet answers with 503.
+ * <p>
+ * The servlet owns one throttle, built from its configuration, and hands
+ * it to every file system view it creates.
+ */
+public class NameNodeThrottle {
+
+  public static final String RATE_KEY = "hadoop.webdav.namenode.rate";
+  public static final String RATE_PER_USER_KEY =
+    "hadoop.webdav.namenode.rate.per.user";
+  public static final String BURST_KEY = "hadoop.webdav.namenode.burst";
+  public static final String BURST_PER_USER_KEY =
+    "hadoop.webdav.namenode.burst.per.user";
+  public static final String MAX_WAIT_KEY =
+    "hadoop.webdav.namenode.max.wait.ms";
+  public static final long DEFAULT_MAX_WAIT = 100L;
+
+  /**
+   * Token bucket whose callers reserve a token and then wait outside the
+   * lock until it is due
+   */
+  static class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    TokenBucket(double perSecond, double capacity) {
+      this.tokensPerNano = perSecond / 1e9;
+      this.capacity = Math.max(1, capacity);
+      this.tokens = this.capacity;
+    }
+
+    /**
+     * Reserve a token, returning the nanoseconds until it is due, or -1 if
+     * that is more than maxWait and nothing was reserved
+     */
+    synchronized long reserve(long maxWaitNanos) {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+      last = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      long wait = (long)Math.ceil((1 - tokens) / tokensPerNano);
+      if (wait > maxWaitNanos) {
+        return -1;
+      }
+      tokens -= 1;
+      return wait;
+    }
+
+    synchronized void refund() {
+      tokens = Math.min(capacity, tokens + 1);
+    }
+  }
+
+  private final TokenBucket global;
+  private final double perUserRate;
+  private final double perUserBurst;
+  private final ConcurrentMap<String, TokenBucket> users;
+  private final long maxWaitNanos;
+  private final Counter throttled =
+    Metrics.newCounter(NameNodeThrottle.class, "throttled");
+  private final Timer waits = Metrics.newTimer(NameNodeThrottle.class,
+    "wait", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+  public NameNodeThrottle(Configuration conf) {
+    float rate = conf.getFloat(RATE_KEY, 0);
+    perUserRate = conf.getFloat(RATE_PER_USER_KEY, 0);
+    float burst = conf.getFloat(BURST_KEY, 0);
+    float perUserBurst = conf.getFloat(BURST_PER_USER_KEY, 0);
+    // Without a configured burst, allow one second's worth of calls
+    global = rate > 0 ? new TokenBucket(rate, burst > 0 ? burst : rate) : null;
+    this.perUserBurst = perUserBurst > 0 ? perUserBurst : perUserRate;
+    users = new MapMaker().expireAfterAccess(10, TimeUnit.MINUTES).makeMap();
+    maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(
+      conf.getLong(MAX_WAIT_KEY, DEFAULT_MAX_WAIT));
+  }
+
+  /**
+   * Return true if any NameNode call rate is limited
+   */
+  public boolean isEnabled() {
+    return global != null || perUserRate > 0;
+  }
+
+  private TokenBucket getUserBucket() throws IOException {
+    if (perUserRate <= 0) {
+      return null;
+    }
+    String user = UserGroupInformation.getCurrentUser().getShortUserName();
+    TokenBucket bucket = users.get(user);
+    if (bucket == null) {
+      bucket = new TokenBucket(perUserRate, perUserBurst);
+      TokenBucket existing = users.putIfAbsent(user, bucket);
+      if (existing != null) {
+        bucket = existing;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Wait for permission to make a NameNode call as the current user
+   */
+  public void acquire(String op) throws IOException {
+    TokenBucket user = getUserBucket();
+    long wait = 0;
+    if (user != null) {
+      wait = user.reserve(maxWaitNanos);
+      if (wait < 0) {
+        throttled.inc();
+        throw new ThrottledException("Per user NameNode call rate exceeded" +
+          " for " + op);
+      }
+    }
+    if (global != null) {
+      long globalWait = global.reserve(maxWaitNanos);
+      if (globalWait < 0) {
+        if (user != null) {
+          user.refund();
+        }
+        throttled.inc();
+        throw new ThrottledException("NameNode call rate exceeded for " + op);
+      }
+      wait = Math.max(wait, globalWait);
+    }
+    if (wait > 0) {
+      waits.update(wait, TimeUnit.NANOSECONDS);
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to call " +
+          "the NameNode for " + op);
+      }
+    }
+  }
+
+}
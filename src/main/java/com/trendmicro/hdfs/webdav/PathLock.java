@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import org.apache.jackrabbit.webdav.lock.DefaultActiveLock;
+import org.apache.jackrabbit.webdav.lock.LockInfo;
+
+/**
+ * An exclusive write lock that knows the path it is held on. Locks read back
+ * from a {@link LockStore} keep the token they were created with.
+ */
+public class PathLock extends DefaultActiveLock {
+
+  private final String path;
+  private final String token;
+
+  public PathLock(String path, LockInfo lockInfo) {
+    super(lockInfo);
+    this.path = path;
+    this.token = null;
+  }
+
+  public PathLock(String path, String token, String owner, boolean isDeep,
+      long expires) {
+    super();
+    this.path = path;
+    this.token = token;
+    setOwner(owner);
+    setIsDeep(isDeep);
+    setTimeout(expires - System.currentTimeMillis());
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Absolute time in milliseconds at which this lock expires
+   */
+  public long getExpires() {
+    return System.currentTimeMillis() + getTimeout();
+  }
+
+  @Override
+  public String getToken() {
+    return token != null ? token : super.getToken();
+  }
+
+  @Override
+  public boolean isLockedByToken(String lockToken) {
+    return lockToken != null && lockToken.equals(getToken());
+  }
+
+  /**
+   * Return true if this lock applies to the given path, either because it
+   * is held on it or because it is a depth infinity lock on an ancestor.
+   */
+  public boolean isInScope(String p) {
+    if (path.equals(p)) {
+      return true;
+    }
+    if (!isDeep()) {
+      return false;
+    }
+    return "/".equals(path) || p.startsWith(path + "/");
+  }
+
+}
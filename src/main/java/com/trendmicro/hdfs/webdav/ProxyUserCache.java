@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.authentication.server.AuthenticationToken;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Ready to use proxy users of authenticated principals. Reusing the same
+ * proxy user across requests saves building one per request and, as the
+ * file system cache is keyed by user, lets the user's requests share one
+ * DFS client instead of each creating its own.
+ * <p>
+ * An entry lives as long as the auth token it was created for and is
+ * dropped when the cache is full or it has not been used for the token
+ * validity period.
+ */
+public class ProxyUserCache {
+
+  public static final String CACHE_SIZE_KEY =
+    "hadoop.webdav.proxyuser.cache.size";
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final String TOKEN_VALIDITY_KEY =
+    "hadoop.webdav.authentication.token.validity";
+  public static final long DEFAULT_TOKEN_VALIDITY = 36000L;
+
+  private static class Entry {
+    final UserGroupInformation ugi;
+    volatile long expires;
+
+    Entry(UserGroupInformation ugi, long expires) {
+      this.ugi = ugi;
+      this.expires = expires;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> cache;
+  private final long validity;
+  private final CacheMetrics cacheMetrics =
+    new CacheMetrics(ProxyUserCache.class, "cache");
+
+  public ProxyUserCache(Configuration conf) {
+    // The token validity is in seconds, as for the authentication filter
+    validity = TimeUnit.SECONDS.toMillis(conf.getLong(TOKEN_VALIDITY_KEY,
+      DEFAULT_TOKEN_VALIDITY));
+    cache = new MapMaker()
+      .maximumSize(conf.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE))
+      .expireAfterAccess(validity, TimeUnit.MILLISECONDS)
+      .makeMap();
+  }
+
+  /**
+   * Return the proxy user for the authenticated user of the request, or
+   * null if the request is anonymous
+   */
+  public UserGroupInformation get(HttpServletRequest request)
+      throws IOException {
+    String user = request.getRemoteUser();
+    if (user == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    // Trust the entry no longer than the token that authenticated it
+    long expires = now + validity;
+    Principal principal = request.getUserPrincipal();
+    if (principal instanceof AuthenticationToken) {
+      long tokenExpires = ((AuthenticationToken)principal).getExpires();
+      if (tokenExpires > 0) {
+        expires = tokenExpires;
+      }
+    }
+    Entry entry = cache.get(user);
+    if (entry != null && entry.expires > now) {
+      // A renewed token extends the life of the entry
+      if (expires > entry.expires) {
+        entry.expires = expires;
+      }
+      cacheMetrics.hit();
+      return entry.ugi;
+    }
+    cacheMetrics.miss();
+    entry = new Entry(UserGroupInformation.createProxyUser(user,
+      UserGroupInformation.getLoginUser()), expires);
+    cache.put(user, entry);
+    return entry.ugi;
+  }
+
+}
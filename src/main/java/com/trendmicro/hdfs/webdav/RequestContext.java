@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Per request accounting, bound to the servlet thread for the duration of
+ * {@link HDFSWebDAVServlet#service}. File system calls made on behalf of
+ * the request run on the same thread, even inside <code>doAs</code>.
+ */
+public class RequestContext {
+
+  /** Scope used for file system calls made outside of any request */
+  public static final String NO_METHOD = "NONE";
+
+  private static final ThreadLocal<RequestContext> current =
+    new ThreadLocal<RequestContext>();
+
+  private final String method;
+  private final long startNanos;
+  private long endNanos;
+  private int status = 200;
+  private int nameNodeCalls;
+  private long nameNodeNanos;
+  private long firstByteNanos;
+  private long bytesIn;
+  private long bytesOut;
+  private boolean transferring;
+  private long authNanos;
+  private long resourceNanos;
+  private long preconditionNanos;
+  private long streamNanos;
+  private long copyNanos;
+  // Every NameNode call, only kept for sampled requests
+  private List<String> trace;
+
+  private RequestContext(String method) {
+    this.method = method;
+    this.startNanos = System.nanoTime();
+  }
+
+  static RequestContext begin(String method) {
+    RequestContext context = new RequestContext(method);
+    current.set(context);
+    return context;
+  }
+
+  static void end() {
+    RequestContext context = current.get();
+    if (context != null) {
+      context.endNanos = System.nanoTime();
+      current.remove();
+    }
+  }
+
+  /**
+   * Return the context of the request being served by this thread, or null
+   */
+  public static RequestContext get() {
+    return current.get();
+  }
+
+  /**
+   * Return the method of the request being served by this thread, or
+   * {@link #NO_METHOD}
+   */
+  public static String getCurrentMethod() {
+    RequestContext context = current.get();
+    return context != null ? context.method : NO_METHOD;
+  }
+
+  void addNameNodeCall(String op, Path path, long nanos, boolean failed) {
+    nameNodeCalls++;
+    nameNodeNanos += nanos;
+    if (trace != null) {
+      trace.add(op + " " + path.toUri().getPath() + " " + (nanos / 1000) +
+        "us" +
+        (failed ? " failed" : ""));
+    }
+  }
+
+  void enableTrace() {
+    trace = new ArrayList<String>();
+  }
+
+  void setStatus(int status) {
+    this.status = status;
+  }
+
+  void setAuthNanos(long nanos) {
+    authNanos = nanos;
+  }
+
+  void addResourceNanos(long nanos) {
+    resourceNanos += nanos;
+  }
+
+  void addPreconditionNanos(long nanos) {
+    preconditionNanos += nanos;
+  }
+
+  void addStreamNanos(long nanos) {
+    streamNanos += nanos;
+  }
+
+  void addCopyNanos(long nanos) {
+    copyNanos += nanos;
+  }
+
+  void addBytesIn(long bytes) {
+    bytesIn += bytes;
+  }
+
+  void addBytesOut(long bytes) {
+    if (firstByteNanos == 0) {
+      firstByteNanos = System.nanoTime();
+    }
+    bytesOut += bytes;
+  }
+
+  /**
+   * Mark the request as moving a body, returns true the first time only
+   */
+  boolean startTransfer() {
+    if (transferring) {
+      return false;
+    }
+    transferring = true;
+    return true;
+  }
+
+  boolean isTransferring() {
+    return transferring;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * Return the time the request completed, or 0 while it is in progress
+   */
+  public long getEndNanos() {
+    return endNanos;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public int getNameNodeCalls() {
+    return nameNodeCalls;
+  }
+
+  public long getNameNodeNanos() {
+    return nameNodeNanos;
+  }
+
+  /**
+   * Return the time the first response body byte was written, or 0
+   */
+  public long getFirstByteNanos() {
+    return firstByteNanos;
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  /**
+   * Time spent in the authentication filter, ahead of the servlet
+   */
+  public long getAuthNanos() {
+    return authNanos;
+  }
+
+  /**
+   * Time spent constructing resources
+   */
+  public long getResourceNanos() {
+    return resourceNanos;
+  }
+
+  /**
+   * Time spent checking preconditions, less the NameNode calls made for it
+   */
+  public long getPreconditionNanos() {
+    return preconditionNanos;
+  }
+
+  /**
+   * Time spent reading the request body from and writing the response body
+   * to the client
+   */
+  public long getStreamNanos() {
+    return streamNanos;
+  }
+
+  /**
+   * Time spent copying file content between HDFS and the client, less the
+   * time waiting on the client, which is time spent on the DataNodes
+   */
+  public long getDataNodeNanos() {
+    return Math.max(0, copyNanos - streamNanos);
+  }
+
+  /**
+   * Time in the servlet not accounted to any other phase. For PROPFIND and
+   * other multistatus responses this is almost all building and
+   * serializing the XML response.
+   */
+  public long getSerializationNanos() {
+    long end = endNanos > 0 ? endNanos : System.nanoTime();
+    return Math.max(0, end - startNanos - nameNodeNanos - resourceNanos -
+      preconditionNanos - Math.max(copyNanos, streamNanos));
+  }
+
+  public List<String> getTrace() {
+    return trace;
+  }
+
+}
@@ -22,6 +22,11 @@ import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.DavSessionProvider;
 import org.apache.jackrabbit.webdav.WebdavRequest;
 
+/**
+ * Attaches no session. The gateway is stateless between requests: the
+ * user comes from the auth token on each request and anything worth
+ * keeping lives in gateway wide caches, so no servlet session is needed.
+ */
 public class SessionProvider implements DavSessionProvider {
 
   @Override
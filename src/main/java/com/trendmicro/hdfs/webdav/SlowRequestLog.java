@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Writes requests slower than a threshold, with their per-phase timing
+ * breakdown, to a dedicated log. A sample of all requests can also be
+ * written with a full trace of their NameNode calls.
+ * <p>
+ * Entries are handed to a background thread through a bounded queue, so
+ * a slow log appender never holds up a request. Entries that do not fit in
+ * the queue are dropped and counted.
+ * <p>
+ * The log category is <code>com.trendmicro.hdfs.webdav.SlowRequestLog</code>
+ * and can be routed to its own file in the log4j configuration.
+ */
+public class SlowRequestLog implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(SlowRequestLog.class);
+
+  public static final String THRESHOLD_KEY =
+    "hadoop.webdav.slowlog.threshold.ms";
+  public static final long DEFAULT_THRESHOLD = 2000L;
+  public static final String QUEUE_SIZE_KEY =
+    "hadoop.webdav.slowlog.queue.size";
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  public static final String TRACE_SAMPLE_KEY =
+    "hadoop.webdav.trace.sample.rate";
+  public static final float DEFAULT_TRACE_SAMPLE = 0.0f;
+
+  private static class Entry {
+    final RequestContext context;
+    final String uri;
+    final String user;
+    final String remote;
+
+    Entry(RequestContext context, String uri, String user, String remote) {
+      this.context = context;
+      this.uri = uri;
+      this.user = user;
+      this.remote = remote;
+    }
+  }
+
+  private final long thresholdNanos;
+  private final float sampleRate;
+  private final Random random = new Random();
+  private final BlockingQueue<Entry> queue;
+  private final Counter dropped =
+    Metrics.newCounter(SlowRequestLog.class, "dropped");
+  private final Thread writer;
+
+  public SlowRequestLog(Configuration conf) {
+    long threshold = conf.getLong(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+    thresholdNanos = threshold >= 0 ? threshold * 1000000L : Long.MAX_VALUE;
+    sampleRate = conf.getFloat(TRACE_SAMPLE_KEY, DEFAULT_TRACE_SAMPLE);
+    queue = new ArrayBlockingQueue<Entry>(
+      conf.getInt(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE));
+    writer = new Thread(this, "WebDAV slow request log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Decide whether a request starting now gets a full trace
+   */
+  public boolean sample() {
+    return sampleRate > 0 && random.nextFloat() < sampleRate;
+  }
+
+  /**
+   * Queue the request for logging if it was slow or traced. Must be called
+   * after the context has ended.
+   */
+  public void record(RequestContext context, String uri, String user,
+      String remote) {
+    long elapsed = context.getEndNanos() - context.getStartNanos() +
+      context.getAuthNanos();
+    if (elapsed < thresholdNanos && context.getTrace() == null) {
+      return;
+    }
+    if (!queue.offer(new Entry(context, uri, user, remote))) {
+      dropped.inc();
+    }
+  }
+
+  private static long ms(long nanos) {
+    return nanos / 1000000L;
+  }
+
+  private static String format(Entry entry) {
+    RequestContext context = entry.context;
+    StringBuilder sb = new StringBuilder(256);
+    sb.append(context.getMethod()).append(' ').append(entry.uri)
+      .append(" user=").append(entry.user)
+      .append(" from=").append(entry.remote)
+      .append(" status=").append(context.getStatus())
+      .append(" total=").append(ms(context.getEndNanos() -
+        context.getStartNanos() + context.getAuthNanos())).append("ms")
+      .append(" auth=").append(ms(context.getAuthNanos())).append("ms")
+      .append(" resource=").append(ms(context.getResourceNanos())).append("ms")
+      .append(" precondition=").append(ms(context.getPreconditionNanos()))
+        .append("ms")
+      .append(" namenode=").append(ms(context.getNameNodeNanos()))
+        .append("ms/").append(context.getNameNodeCalls()).append(" calls")
+      .append(" datanode=").append(ms(context.getDataNodeNanos())).append("ms")
+      .append(" serialization=").append(ms(context.getSerializationNanos()))
+        .append("ms")
+      .append(" stream=").append(ms(context.getStreamNanos())).append("ms")
+      .append(" in=").append(context.getBytesIn())
+      .append(" out=").append(context.getBytesOut());
+    if (context.getTrace() != null) {
+      for (String call: context.getTrace()) {
+        sb.append("\n  ").append(call);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Entry entry;
+      try {
+        entry = queue.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      try {
+        LOG.info(format(entry));
+      } catch (Exception e) {
+        // Never let a bad entry kill the writer
+      }
+    }
+  }
+
+  public void close() {
+    writer.interrupt();
+  }
+
+}
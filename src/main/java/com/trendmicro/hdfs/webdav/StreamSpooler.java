@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Copies a file to a client without holding its HDFS stream open while the
+ * client is slow. When a write to the client blocks for longer than the
+ * configured time, the stream, and the DataNode connection behind it, is
+ * closed, and the file is reopened at the same offset once the client has
+ * taken the data. A fast client is served from one stream as before.
+ * <p>
+ * Every reopen costs NameNode calls, so the time a write must block before
+ * the stream is let go doubles with each detach, and after the configured
+ * number of reopens the stream is kept to the end. Before reopening, the
+ * file is checked against the status the response was started from. If it
+ * was replaced or changed in between, or the NameNode call is refused, for
+ * example by the {@link NameNodeThrottle}, the copy fails. As the headers
+ * are already sent by then, the client sees the response cut short of its
+ * Content-Length rather than data from two versions of the file.
+ */
+public class StreamSpooler {
+
+  public static final String DETACH_KEY =
+    "hadoop.webdav.spool.detach.after.ms";
+  public static final long DEFAULT_DETACH = 1000L;
+  public static final String MAX_REOPENS_KEY =
+    "hadoop.webdav.spool.max.reopens";
+  public static final int DEFAULT_MAX_REOPENS = 8;
+
+  private static final Counter detached =
+    Metrics.newCounter(StreamSpooler.class, "detached");
+  private static final Counter reopened =
+    Metrics.newCounter(StreamSpooler.class, "reopened");
+  private static final Counter changed =
+    Metrics.newCounter(StreamSpooler.class, "changed");
+
+  private final FileSystem fs;
+  private final int bufferSize;
+  private final long detachNanos;
+  private final int maxReopens;
+
+  public StreamSpooler(FileSystem fs, Configuration conf) {
+    this.fs = fs;
+    this.bufferSize = conf.getInt("io.file.buffer.size", 4096);
+    this.detachNanos = TimeUnit.MILLISECONDS.toNanos(
+      conf.getLong(DETACH_KEY, DEFAULT_DETACH));
+    this.maxReopens = conf.getInt(MAX_REOPENS_KEY, DEFAULT_MAX_REOPENS);
+  }
+
+  /**
+   * Copy the file to the output stream, which is not closed
+   */
+  public void spool(FileStatus status, OutputStream out) throws IOException {
+    spool(status, out, 0, status.getLen());
+  }
+
+  /**
+   * Fail unless the file still has the given length and modification time
+   */
+  private void checkUnchanged(FileStatus status) throws IOException {
+    FileStatus current = fs.getFileStatus(status.getPath());
+    if (current.getLen() != status.getLen() ||
+        current.getModificationTime() != status.getModificationTime()) {
+      changed.inc();
+      throw new IOException("'" + status.getPath().toUri().getPath() +
+        "' changed while it was being sent");
+    }
+  }
+
+  /**
+   * Copy up to length bytes of the file from offset to the output stream,
+   * which is not closed. The status is the one the response was started
+   * from.
+   */
+  public void spool(FileStatus status, OutputStream out, long offset,
+      long length) throws IOException {
+    Path path = status.getPath();
+    byte[] buffer = new byte[bufferSize];
+    FSDataInputStream in = fs.open(path, bufferSize);
+    long pos = offset;
+    long end = Math.min(status.getLen(), offset + length);
+    long detachAfter = detachNanos;
+    int reopens = 0;
+    try {
+      if (offset > 0) {
+        in.seek(offset);
+      }
+      while (pos < end) {
+        if (in == null) {
+          checkUnchanged(status);
+          in = fs.open(path, bufferSize);
+          in.seek(pos);
+          reopened.inc();
+        }
+        int n = in.read(buffer, 0, (int)Math.min(buffer.length, end - pos));
+        if (n < 0) {
+          break;
+        }
+        pos += n;
+        long start = System.nanoTime();
+        out.write(buffer, 0, n);
+        // A negative setting keeps the stream open throughout
+        if (detachAfter >= 0 && reopens < maxReopens &&
+            System.nanoTime() - start > detachAfter) {
+          in.close();
+          in = null;
+          detached.inc();
+          reopens++;
+          // A client that stays slow must block ever longer to be detached
+          detachAfter *= 2;
+        }
+      }
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.mortbay.jetty.security.SslSelectChannelConnector;
+
+/**
+ * HTTPS connector configured from the hadoop.webdav.https.* properties.
+ * The server session cache is sized so reconnecting clients resume their
+ * TLS sessions with an abbreviated handshake instead of a full one, and
+ * protocols and cipher suites can be narrowed to those the runtime
+ * supports that are wanted.
+ */
+public class TlsConnector extends SslSelectChannelConnector {
+
+  private static final Log LOG = LogFactory.getLog(TlsConnector.class);
+
+  public static final String PREFIX = "hadoop.webdav.https.";
+  public static final String PORT_KEY = PREFIX + "port";
+
+  private final int sessionCacheSize;
+  private final int sessionTimeout;
+  private final String[] protocols;
+  private final String[] cipherSuites;
+  // Narrowed to what the runtime supports when the context is created
+  private String[] enabledProtocols;
+  private String[] enabledCipherSuites;
+
+  public TlsConnector(Configuration conf) {
+    setKeystore(conf.get(PREFIX + "keystore"));
+    setKeystoreType(conf.get(PREFIX + "keystore.type", "JKS"));
+    setPassword(conf.get(PREFIX + "keystore.password", ""));
+    setKeyPassword(conf.get(PREFIX + "key.password",
+      conf.get(PREFIX + "keystore.password", "")));
+    String truststore = conf.get(PREFIX + "truststore");
+    if (truststore != null) {
+      setTruststore(truststore);
+      setTruststoreType(conf.get(PREFIX + "truststore.type", "JKS"));
+      setTrustPassword(conf.get(PREFIX + "truststore.password", ""));
+    }
+    String[] excluded = conf.getStrings(PREFIX + "exclude.cipher.suites");
+    if (excluded != null) {
+      setExcludeCipherSuites(excluded);
+    }
+    sessionCacheSize = conf.getInt(PREFIX + "session.cache.size", 20000);
+    sessionTimeout = conf.getInt(PREFIX + "session.timeout.seconds", 3600);
+    protocols = conf.getStrings(PREFIX + "protocols");
+    cipherSuites = conf.getStrings(PREFIX + "cipher.suites");
+  }
+
+  /**
+   * Return the wanted values the engine supports, logging those it does not
+   */
+  private static String[] filter(String what, String[] wanted,
+      String[] supported) {
+    List<String> supportedList = Arrays.asList(supported);
+    List<String> result = new ArrayList<String>();
+    for (String s: wanted) {
+      s = s.trim();
+      if (supportedList.contains(s)) {
+        result.add(s);
+      } else {
+        LOG.warn("Ignoring unsupported TLS " + what + " " + s);
+      }
+    }
+    if (result.isEmpty()) {
+      throw new IllegalArgumentException("None of the configured TLS " +
+        what + "s are supported");
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  @Override
+  protected SSLContext createSSLContext() throws Exception {
+    SSLContext context = super.createSSLContext();
+    SSLSessionContext sessions = context.getServerSessionContext();
+    sessions.setSessionCacheSize(sessionCacheSize);
+    sessions.setSessionTimeout(sessionTimeout);
+    SSLEngine probe = context.createSSLEngine();
+    if (protocols != null) {
+      enabledProtocols = filter("protocol", protocols,
+        probe.getSupportedProtocols());
+    }
+    if (cipherSuites != null) {
+      enabledCipherSuites = filter("cipher suite", cipherSuites,
+        probe.getSupportedCipherSuites());
+    }
+    LOG.info("TLS protocols " + Arrays.toString(enabledProtocols != null ?
+      enabledProtocols : probe.getEnabledProtocols()) + ", session cache " +
+      "size " + sessionCacheSize + ", timeout " + sessionTimeout + "s");
+    return context;
+  }
+
+  @Override
+  protected SSLEngine createSSLEngine() throws IOException {
+    SSLEngine engine = super.createSSLEngine();
+    if (enabledProtocols != null) {
+      engine.setEnabledProtocols(enabledProtocols);
+    }
+    if (enabledCipherSuites != null) {
+      engine.setEnabledCipherSuites(enabledCipherSuites);
+    }
+    return engine;
+  }
+
+}
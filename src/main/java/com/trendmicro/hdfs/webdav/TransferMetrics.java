@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * Request and response wrappers that meter body bytes in each direction,
+ * note the time of the first response byte and the time spent on the
+ * streams, capture the response status, and count the requests that are
+ * currently moving a body.
+ */
+public class TransferMetrics {
+
+  private static final Meter bytesIn = Metrics.newMeter(TransferMetrics.class,
+    "bytes-in", "bytes", TimeUnit.SECONDS);
+  private static final Meter bytesOut = Metrics.newMeter(TransferMetrics.class,
+    "bytes-out", "bytes", TimeUnit.SECONDS);
+  private static final Counter activeTransfers =
+    Metrics.newCounter(TransferMetrics.class, "active-transfers");
+
+  private TransferMetrics() { }
+
+  private static void startTransfer(RequestContext context) {
+    if (context.startTransfer()) {
+      activeTransfers.inc();
+    }
+  }
+
+  /**
+   * Called once the request has been served
+   */
+  static void end(RequestContext context) {
+    if (context.isTransferring()) {
+      activeTransfers.dec();
+    }
+  }
+
+  static HttpServletRequest wrap(final HttpServletRequest request,
+      final RequestContext context) {
+    return new HttpServletRequestWrapper(request) {
+      private ServletInputStream in;
+
+      @Override
+      public ServletInputStream getInputStream() throws IOException {
+        if (in == null) {
+          in = new MeteredInputStream(super.getInputStream(), context);
+        }
+        return in;
+      }
+    };
+  }
+
+  static HttpServletResponse wrap(final HttpServletResponse response,
+      final RequestContext context) {
+    return new HttpServletResponseWrapper(response) {
+      private ServletOutputStream out;
+
+      @Override
+      public void setStatus(int sc) {
+        context.setStatus(sc);
+        super.setStatus(sc);
+      }
+
+      @Override
+      public void sendError(int sc) throws IOException {
+        context.setStatus(sc);
+        super.sendError(sc);
+      }
+
+      @Override
+      public void sendError(int sc, String msg) throws IOException {
+        context.setStatus(sc);
+        super.sendError(sc, msg);
+      }
+
+      @Override
+      public void sendRedirect(String location) throws IOException {
+        context.setStatus(SC_MOVED_TEMPORARILY);
+        super.sendRedirect(location);
+      }
+
+      @Override
+      public ServletOutputStream getOutputStream() throws IOException {
+        if (out == null) {
+          out = new MeteredOutputStream(super.getOutputStream(), context);
+        }
+        return out;
+      }
+    };
+  }
+
+  private static class MeteredInputStream extends ServletInputStream {
+    private final ServletInputStream in;
+    private final RequestContext context;
+
+    MeteredInputStream(ServletInputStream in, RequestContext context) {
+      this.in = in;
+      this.context = context;
+    }
+
+    private void count(int n) {
+      if (n > 0) {
+        startTransfer(context);
+        context.addBytesIn(n);
+        bytesIn.mark(n);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int b = in.read();
+      context.addStreamNanos(System.nanoTime() - start);
+      count(b >= 0 ? 1 : 0);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int n = in.read(b, off, len);
+      context.addStreamNanos(System.nanoTime() - start);
+      count(n);
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class MeteredOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+    private final RequestContext context;
+
+    MeteredOutputStream(ServletOutputStream out, RequestContext context) {
+      this.out = out;
+      this.context = context;
+    }
+
+    private void count(int n) {
+      if (n > 0) {
+        startTransfer(context);
+        context.addBytesOut(n);
+        bytesOut.mark(n);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      count(1);
+      long start = System.nanoTime();
+      out.write(b);
+      context.addStreamNanos(System.nanoTime() - start);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count(len);
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      context.addStreamNanos(System.nanoTime() - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      out.flush();
+      context.addStreamNanos(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * Jetty thread pool that runs every job on a new virtual thread, so
+ * connections and requests blocked on HDFS or on the network do not hold
+ * platform threads and the pool never needs sizing.
+ * <p>
+ * Virtual threads need Java 21 or later. They are reached by reflection so
+ * the gateway still builds and runs on older runtimes, where
+ * {@link #isSupported()} is false and the pooled mode must be used.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle
+    implements ThreadPool {
+
+  private static final Log LOG = LogFactory.getLog(VirtualThreadPool.class);
+
+  private final String name;
+  private final Set<Thread> threads = Collections.newSetFromMap(
+    new ConcurrentHashMap<Thread, Boolean>());
+  private ThreadFactory factory;
+
+  public VirtualThreadPool(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Return true if the runtime can create virtual threads
+   */
+  public static boolean isSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private ThreadFactory createFactory() throws Exception {
+    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+    builder = builderClass.getMethod("name", String.class, long.class)
+      .invoke(builder, name + "-", 0L);
+    Method factoryMethod = builderClass.getMethod("factory");
+    return (ThreadFactory)factoryMethod.invoke(builder);
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    factory = createFactory();
+    LOG.info("Running " + name + " requests on virtual threads");
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    for (Thread thread: threads) {
+      thread.interrupt();
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  public boolean dispatch(final Runnable job) {
+    if (!isRunning()) {
+      return false;
+    }
+    Thread thread = factory.newThread(new Runnable() {
+      public void run() {
+        try {
+          job.run();
+        } finally {
+          threads.remove(Thread.currentThread());
+        }
+      }
+    });
+    threads.add(thread);
+    thread.start();
+    return true;
+  }
+
+  public synchronized void join() throws InterruptedException {
+    while (isRunning()) {
+      wait();
+    }
+  }
+
+  public int getThreads() {
+    return threads.size();
+  }
+
+  public int getIdleThreads() {
+    // Threads are never kept around idle
+    return 0;
+  }
+
+  public boolean isLowOnThreads() {
+    return false;
+  }
+
+}
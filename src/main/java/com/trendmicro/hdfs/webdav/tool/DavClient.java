@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.hadoop.security.authentication.client.AuthenticatedURL;
+
+/**
+ * HTTP client shared by the tools. Requests go over a pool of persistent
+ * connections and carry a token obtained once through
+ * {@link AuthenticatedURL}, SPNEGO if the gateway asks for it.
+ */
+class DavClient {
+
+  private final HttpClient client;
+  private final URL authUrl;
+  private AuthenticatedURL.Token token;
+
+  DavClient(String url, int connections) throws IOException {
+    authUrl = new URL(url);
+    MultiThreadedHttpConnectionManager connectionManager =
+      new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    params.setDefaultMaxConnectionsPerHost(connections);
+    params.setMaxTotalConnections(connections);
+    params.setStaleCheckingEnabled(false);
+    connectionManager.setParams(params);
+    client = new HttpClient(connectionManager);
+  }
+
+  /**
+   * Obtain a fresh authentication token
+   */
+  synchronized void authenticate() throws IOException {
+    AuthenticatedURL.Token newToken = new AuthenticatedURL.Token();
+    try {
+      HttpURLConnection conn =
+        new AuthenticatedURL().openConnection(authUrl, newToken);
+      conn.getResponseCode();
+      conn.disconnect();
+    } catch (Exception e) {
+      throw new IOException("Authentication failed: " + e.getMessage(), e);
+    }
+    token = newToken;
+  }
+
+  private synchronized String getCookie() {
+    return token != null && token.isSet() ?
+      AuthenticatedURL.AUTH_COOKIE + "=\"" + token + "\"" : null;
+  }
+
+  /**
+   * Execute the method with the current token and return the status code.
+   * The caller must release the connection.
+   */
+  int execute(HttpMethod method) throws IOException {
+    String cookie = getCookie();
+    if (cookie != null) {
+      method.setRequestHeader("Cookie", cookie);
+    }
+    int code = client.executeMethod(method);
+    if (code == HttpURLConnection.HTTP_UNAUTHORIZED) {
+      // The token may have expired, get another for the next request
+      authenticate();
+    }
+    return code;
+  }
+
+  /**
+   * Execute the method, discard the response body so the connection can be
+   * reused, and return the status code
+   */
+  int executeAndRelease(HttpMethod method) throws IOException {
+    try {
+      int code = execute(method);
+      InputStream in = method.getResponseBodyAsStream();
+      if (in != null) {
+        byte[] buf = new byte[65536];
+        while (in.read(buf) >= 0) { }
+      }
+      return code;
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  /**
+   * Encode a single path segment for use in a URL
+   */
+  static String encode(String name) {
+    try {
+      return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
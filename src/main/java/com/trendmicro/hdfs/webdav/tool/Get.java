@@ -19,9 +19,22 @@
 package com.trendmicro.hdfs.webdav.tool;
 
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
@@ -30,19 +43,303 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.hadoop.security.authentication.client.AuthenticatedURL;
 
+/**
+ * Fetches a file from the gateway. With an output file the download is
+ * split into chunks fetched over parallel range requests and written in
+ * place into a preallocated file. Completed chunks are recorded next to it,
+ * together with the Last-Modified time or ETag of the file, so an
+ * interrupted download resumes where it stopped as long as the file is
+ * unchanged. Every chunk is requested with If-Range, and a file that
+ * changes during the download is fetched again from the start. If the
+ * gateway does not honor Range the file is fetched as a single stream.
+ */
 public class Get {
 
+  private static final int BUFFER_SIZE = 65536;
+  private static final int RETRIES = 3;
+  private static final String PROGRESS_SUFFIX = ".progress";
+
+  private static boolean debug;
+
+  /**
+   * The remote file is no longer the one the download started from
+   */
+  private static class RemoteChangedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RemoteChangedException(String message) {
+      super(message);
+    }
+  }
+
   private static void printUsageAndExit(Options options, int exitCode) {
     HelpFormatter formatter = new HelpFormatter();
     formatter.printHelp("Usage: Get [options] url", "", options, "", true);
     System.exit(exitCode);
   }
 
+  /**
+   * Open a connection carrying an already obtained authentication token
+   */
+  private static HttpURLConnection open(URL url, AuthenticatedURL.Token token,
+      String range) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+    if (token.isSet()) {
+      AuthenticatedURL.injectToken(conn, token);
+    }
+    if (range != null) {
+      conn.setRequestProperty("Range", range);
+    }
+    return conn;
+  }
+
+  private static long copy(InputStream in, OutputStream out)
+      throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    long total = 0;
+    int n;
+    try {
+      while ((n = in.read(buf)) >= 0) {
+        out.write(buf, 0, n);
+        total += n;
+      }
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+
+  /**
+   * Return the ETag of the response, or failing that its Last-Modified
+   * time, or null if it has neither
+   */
+  private static String getValidator(HttpURLConnection conn) {
+    String etag = conn.getHeaderField("ETag");
+    // A weak tag cannot be used with If-Range
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return conn.getHeaderField("Last-Modified");
+  }
+
+  /**
+   * Return the total length from a Content-Range header, or -1 if unknown
+   */
+  private static long getTotalLength(HttpURLConnection conn) {
+    String range = conn.getHeaderField("Content-Range");
+    if (range == null || range.indexOf('/') < 0) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void summary(long bytes, long skipped, long startNanos,
+      int connections) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.err.printf("Downloaded %d bytes in %.2f s (%.2f MB/s) over %d " +
+      "connection(s)%s%n", bytes, seconds, bytes / seconds / (1024 * 1024),
+      connections, skipped > 0 ? ", resumed after " + skipped + " bytes" : "");
+  }
+
+  /**
+   * Parallel download of fixed size chunks into a preallocated file
+   */
+  private static class RangedDownload {
+    private final URL url;
+    private final AuthenticatedURL.Token token;
+    private final File file;
+    private final File progressFile;
+    private final long total;
+    private final long chunkSize;
+    private final String validator;
+    private final int chunks;
+    private final BitSet done = new BitSet();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private long skipped;
+    private FileChannel channel;
+    private Writer progress;
+    private volatile IOException failure;
+
+    RangedDownload(URL url, AuthenticatedURL.Token token, File file,
+        long total, long chunkSize, String validator) {
+      this.url = url;
+      this.token = token;
+      this.file = file;
+      this.progressFile = new File(file.getPath() + PROGRESS_SUFFIX);
+      this.total = total;
+      this.chunkSize = chunkSize;
+      this.validator = validator;
+      this.chunks = (int)((total + chunkSize - 1) / chunkSize);
+    }
+
+    private String getHeader() {
+      return total + " " + chunkSize + " " + validator;
+    }
+
+    /**
+     * Pick up the chunks of an earlier attempt at the same download of the
+     * same version of the file
+     */
+    private void loadProgress() throws IOException {
+      // Without a validator a changed file cannot be told apart
+      if (validator == null || !progressFile.exists() ||
+          file.length() != total) {
+        return;
+      }
+      BufferedReader reader =
+        new BufferedReader(new FileReader(progressFile));
+      try {
+        String header = reader.readLine();
+        if (!getHeader().equals(header)) {
+          return;
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            done.set(Integer.parseInt(line.trim()));
+          } catch (NumberFormatException e) {
+            // A torn last line, the chunk is fetched again
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      for (int i = done.nextSetBit(0); i >= 0 && i < chunks;
+          i = done.nextSetBit(i + 1)) {
+        skipped += Math.min(total, (i + 1) * chunkSize) - i * chunkSize;
+      }
+    }
+
+    private synchronized void chunkDone(int i) throws IOException {
+      done.set(i);
+      progress.write(i + "\n");
+      progress.flush();
+    }
+
+    private void fetch(int i) throws IOException {
+      long start = i * chunkSize;
+      long end = Math.min(total, start + chunkSize) - 1;
+      HttpURLConnection conn = open(url, token, "bytes=" + start + "-" + end);
+      if (validator != null) {
+        conn.setRequestProperty("If-Range", validator);
+      }
+      int code = conn.getResponseCode();
+      // The whole file instead of the range means it no longer matches
+      if ((validator != null && code == HttpURLConnection.HTTP_OK) ||
+          (code == HttpURLConnection.HTTP_PARTIAL &&
+            getTotalLength(conn) != total)) {
+        conn.disconnect();
+        throw new RemoteChangedException(url + " changed during the " +
+          "download");
+      }
+      if (code != HttpURLConnection.HTTP_PARTIAL) {
+        conn.disconnect();
+        throw new IOException("Range request for chunk " + i +
+          " answered with " + conn.getResponseCode());
+      }
+      InputStream in = conn.getInputStream();
+      byte[] buf = new byte[BUFFER_SIZE];
+      long position = start;
+      try {
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+          ByteBuffer buffer = ByteBuffer.wrap(buf, 0, n);
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      if (position != end + 1) {
+        throw new IOException("Short read for chunk " + i + ", got " +
+          (position - start) + " of " + (end + 1 - start) + " bytes");
+      }
+      bytes.addAndGet(position - start);
+    }
+
+    private class Worker implements Runnable {
+      @Override
+      public void run() {
+        int i;
+        while (failure == null && (i = next.getAndIncrement()) < chunks) {
+          synchronized (RangedDownload.this) {
+            if (done.get(i)) {
+              continue;
+            }
+          }
+          for (int attempt = 1; ; attempt++) try {
+            fetch(i);
+            chunkDone(i);
+            break;
+          } catch (RemoteChangedException e) {
+            failure = e;
+            return;
+          } catch (IOException e) {
+            if (attempt >= RETRIES) {
+              failure = e;
+              return;
+            }
+            if (debug) {
+              System.err.println("Retrying chunk " + i + ": " + e);
+            }
+          }
+        }
+      }
+    }
+
+    void run(int connections) throws Exception {
+      loadProgress();
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(total);
+        channel = raf.getChannel();
+        boolean resume = skipped > 0;
+        progress = new FileWriter(progressFile, resume);
+        try {
+          if (!resume) {
+            progress.write(getHeader() + "\n");
+            progress.flush();
+          }
+          long startNanos = System.nanoTime();
+          Thread[] workers = new Thread[connections];
+          for (int i = 0; i < connections; i++) {
+            workers[i] = new Thread(new Worker(), "Get-" + i);
+            workers[i].start();
+          }
+          for (Thread worker: workers) {
+            worker.join();
+          }
+          if (failure != null) {
+            throw failure;
+          }
+          summary(bytes.get(), skipped, startNanos, connections);
+        } finally {
+          progress.close();
+        }
+      } finally {
+        raf.close();
+      }
+      progressFile.delete();
+    }
+  }
+
   public static void main(String[] args) throws Exception {
-    // Process command line 
+    // Process command line
 
     Options options = new Options();
     options.addOption("d", "debug", false, "Enable debug logging");
+    options.addOption("o", "output", true,
+      "Write to this file instead of standard output");
+    options.addOption("c", "connections", true,
+      "Parallel connections for a download to a file (default 4)");
+    options.addOption("s", "chunk-size", true,
+      "Bytes fetched per range request (default 16777216)");
 
     CommandLine cmd = null;
     try {
@@ -50,33 +347,87 @@ public class Get {
     } catch (ParseException e) {
       printUsageAndExit(options, -1);
     }
-    boolean debug = cmd.hasOption('d');
+    debug = cmd.hasOption('d');
     args = cmd.getArgs();
     if (args.length < 1) {
       printUsageAndExit(options, -1);
     }
+    int connections = Integer.parseInt(cmd.getOptionValue('c', "4"));
+    long chunkSize = Long.parseLong(cmd.getOptionValue('s', "16777216"));
+    File output = cmd.hasOption('o') ? new File(cmd.getOptionValue('o')) :
+      null;
 
-    // Do the fetch
+    // Do the fetch, authenticating once for all connections. A one byte
+    // range tells whether the gateway honors Range and the total length.
 
+    URL source = new URL(args[0]);
     AuthenticatedURL.Token token = new AuthenticatedURL.Token();
     AuthenticatedURL url = new AuthenticatedURL();
-    HttpURLConnection conn = url.openConnection(new URL(args[0]), token);
+    long startNanos = System.nanoTime();
+    HttpURLConnection conn = url.openConnection(source, token);
+    if (output != null) {
+      conn.setRequestProperty("Range", "bytes=0-0");
+    }
+    int code = conn.getResponseCode();
     if (debug) {
-      System.out.println("Token value: " + token);
-      System.out.println("Status code: " + conn.getResponseCode() + " " +
+      System.err.println("Token value: " + token);
+      System.err.println("Status code: " + code + " " +
         conn.getResponseMessage());
     }
-    if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-      BufferedReader reader =
-        new BufferedReader(new InputStreamReader(conn.getInputStream()));
-      String line = reader.readLine();
-      while (line != null) {
-        System.out.println(line);
-        line = reader.readLine();
+
+    for (int attempt = 1; code == HttpURLConnection.HTTP_PARTIAL;
+        attempt++) {
+      long total = getTotalLength(conn);
+      String validator = getValidator(conn);
+      conn.getInputStream().close();
+      if (total < 0) {
+        // Unknown length, start over without a range
+        conn = open(source, token, null);
+        code = conn.getResponseCode();
+        break;
       }
-      reader.close();
+      try {
+        new RangedDownload(source, token, output, total, chunkSize,
+          validator).run(connections);
+        return;
+      } catch (RemoteChangedException e) {
+        if (attempt >= RETRIES) {
+          throw e;
+        }
+        // The chunks already written are of the old version, the new
+        // validator makes the next attempt start from scratch
+        System.err.println(e.getMessage() + ", starting over");
+        conn = open(source, token, "bytes=0-0");
+        code = conn.getResponseCode();
+      }
+    }
+    if (code == 416) {
+      // Only an empty file has no first byte
+      conn.disconnect();
+      new FileOutputStream(output).close();
+      summary(0, 0, startNanos, 1);
+      return;
+    }
+
+    if (code != HttpURLConnection.HTTP_OK) {
+      System.err.println("Fetch failed: " + code + " " +
+        conn.getResponseMessage());
+      System.exit(1);
+    }
+    if (output == null) {
+      copy(conn.getInputStream(), System.out);
+      System.out.flush();
+      return;
+    }
+    if (debug) {
+      System.err.println("Range not supported, using a single stream");
+    }
+    OutputStream out = new FileOutputStream(output);
+    try {
+      summary(copy(conn.getInputStream(), out), 0, startNanos, 1);
+    } finally {
+      out.close();
     }
-    System.out.println();
   }
 
 }
@@ -0,0 +1,288 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.tool;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.hadoop.security.authentication.client.AuthenticatedURL;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.client.methods.CopyMethod;
+import org.apache.jackrabbit.webdav.client.methods.DeleteMethod;
+import org.apache.jackrabbit.webdav.client.methods.MkColMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Drives a weighted mix of GET, PUT, PROPFIND and COPY requests against a
+ * gateway from N threads over persistent connections, then reports
+ * throughput and latency percentiles per operation.
+ * <p>
+ * All requests go to a scratch collection created under the given URL,
+ * which is deleted afterwards unless asked to keep it. The client
+ * authenticates once through {@link AuthenticatedURL}, SPNEGO or simple,
+ * and sends the resulting token with every request.
+ */
+public class LoadGenerator {
+
+  private enum Op { GET, PUT, PROPFIND, COPY }
+
+  private final String base;
+  private final int threads;
+  private final int files;
+  private final byte[] payload;
+  private final int[] weights = new int[Op.values().length];
+  private int totalWeight;
+  private final DavClient client;
+  private final Timer[] timers = new Timer[Op.values().length];
+  private final Counter[] errors = new Counter[Op.values().length];
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile boolean running = true;
+  private volatile boolean measuring = false;
+
+  public LoadGenerator(String url, int threads, int files, int size,
+      String mix) throws IOException {
+    String runName = "loadgen-" + System.currentTimeMillis();
+    this.base = (url.endsWith("/") ? url : url + "/") + runName;
+    this.threads = threads;
+    this.files = files;
+    this.payload = new byte[size];
+    new Random().nextBytes(payload);
+    for (String entry: mix.split(",")) {
+      String[] kv = entry.split("=");
+      Op op = Op.valueOf(kv[0].trim().toUpperCase());
+      weights[op.ordinal()] = Integer.parseInt(kv[1].trim());
+      totalWeight += weights[op.ordinal()];
+    }
+    if (totalWeight <= 0) {
+      throw new IllegalArgumentException("Empty operation mix: " + mix);
+    }
+    for (Op op: Op.values()) {
+      timers[op.ordinal()] = Metrics.newTimer(LoadGenerator.class,
+        op.name().toLowerCase(), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      errors[op.ordinal()] = Metrics.newCounter(LoadGenerator.class,
+        op.name().toLowerCase() + "-errors");
+    }
+    client = new DavClient(url, threads);
+  }
+
+  private void check(HttpMethod method, String what) throws IOException {
+    int code = client.executeAndRelease(method);
+    if (code >= 400) {
+      throw new IOException(what + " failed with status " + code);
+    }
+  }
+
+  private String seed(int i) {
+    return base + "/seed/file-" + i;
+  }
+
+  private String output(String prefix, int thread) {
+    return base + "/out/" + prefix + "-" + thread + "-" +
+      sequence.incrementAndGet();
+  }
+
+  private void setup() throws IOException {
+    client.authenticate();
+    check(new MkColMethod(base), "Creating " + base);
+    check(new MkColMethod(base + "/seed"), "Creating seed collection");
+    check(new MkColMethod(base + "/out"), "Creating output collection");
+    for (int i = 0; i < files; i++) {
+      PutMethod put = new PutMethod(seed(i));
+      put.setRequestEntity(new ByteArrayRequestEntity(payload));
+      check(put, "Uploading " + seed(i));
+    }
+  }
+
+  private void cleanup() throws IOException {
+    check(new DeleteMethod(base), "Deleting " + base);
+  }
+
+  private Op pick(Random random) {
+    int n = random.nextInt(totalWeight);
+    for (Op op: Op.values()) {
+      n -= weights[op.ordinal()];
+      if (n < 0) {
+        return op;
+      }
+    }
+    return Op.GET;
+  }
+
+  private HttpMethod newMethod(Op op, int thread, Random random)
+      throws IOException {
+    switch (op) {
+    case PUT:
+      PutMethod put = new PutMethod(output("put", thread));
+      put.setRequestEntity(new ByteArrayRequestEntity(payload));
+      return put;
+    case PROPFIND:
+      return new PropFindMethod(base + "/seed",
+        DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_1);
+    case COPY:
+      return new CopyMethod(seed(random.nextInt(files)),
+        output("copy", thread), true);
+    default:
+      return new GetMethod(seed(random.nextInt(files)));
+    }
+  }
+
+  private class Worker implements Runnable {
+    private final int id;
+    private final Random random = new Random();
+
+    Worker(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        Op op = pick(random);
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+          ok = client.executeAndRelease(newMethod(op, id, random)) < 400;
+        } catch (IOException e) {
+          ok = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (measuring) {
+          if (ok) {
+            timers[op.ordinal()].update(elapsed, TimeUnit.NANOSECONDS);
+          } else {
+            errors[op.ordinal()].inc();
+          }
+        }
+      }
+    }
+  }
+
+  public void run(int warmupSeconds, int durationSeconds) throws Exception {
+    setup();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Worker(i), "LoadGenerator-" + i);
+      workers[i].start();
+    }
+    Thread.sleep(warmupSeconds * 1000L);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(durationSeconds * 1000L);
+    measuring = false;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    running = false;
+    for (Thread worker: workers) {
+      worker.join();
+    }
+    report(seconds);
+  }
+
+  private void report(double seconds) {
+    System.out.printf("%-9s %9s %7s %10s %9s %9s %9s %9s%n", "op",
+      "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    long total = 0;
+    long totalErrors = 0;
+    for (Op op: Op.values()) {
+      if (weights[op.ordinal()] == 0) {
+        continue;
+      }
+      Timer timer = timers[op.ordinal()];
+      Snapshot snapshot = timer.getSnapshot();
+      long count = timer.count();
+      long failed = errors[op.ordinal()].count();
+      total += count;
+      totalErrors += failed;
+      System.out.printf("%-9s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f%n",
+        op, count, failed, count / seconds, snapshot.getMedian(),
+        snapshot.getValue(0.9), snapshot.get99thPercentile(), timer.max());
+    }
+    System.out.printf("%-9s %9d %7d %10.1f%n", "total", total, totalErrors,
+      total / seconds);
+  }
+
+  private static void printUsageAndExit(Options options, int exitCode) {
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp("Usage: LoadGenerator [options] url", "", options,
+      "", true);
+    System.exit(exitCode);
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Process command line
+
+    Options options = new Options();
+    options.addOption("t", "threads", true, "Client threads (default 8)");
+    options.addOption("d", "duration", true,
+      "Measured run time in seconds (default 60)");
+    options.addOption("w", "warmup", true,
+      "Unmeasured warm up time in seconds (default 10)");
+    options.addOption("m", "mix", true,
+      "Operation weights (default GET=70,PUT=10,PROPFIND=15,COPY=5)");
+    options.addOption("s", "size", true,
+      "Size of uploaded files in bytes (default 65536)");
+    options.addOption("f", "files", true,
+      "Number of seed files to read and copy (default 16)");
+    options.addOption("k", "keep", false,
+      "Keep the scratch collection after the run");
+
+    CommandLine cmd = null;
+    try {
+      cmd = new PosixParser().parse(options, args);
+    } catch (ParseException e) {
+      printUsageAndExit(options, -1);
+    }
+    args = cmd.getArgs();
+    if (args.length < 1) {
+      printUsageAndExit(options, -1);
+    }
+
+    // Run the load
+
+    LoadGenerator generator = new LoadGenerator(args[0],
+      Integer.parseInt(cmd.getOptionValue('t', "8")),
+      Integer.parseInt(cmd.getOptionValue('f', "16")),
+      Integer.parseInt(cmd.getOptionValue('s', "65536")),
+      cmd.getOptionValue('m', "GET=70,PUT=10,PROPFIND=15,COPY=5"));
+    try {
+      generator.run(Integer.parseInt(cmd.getOptionValue('w', "10")),
+        Integer.parseInt(cmd.getOptionValue('d', "60")));
+    } finally {
+      if (!cmd.hasOption('k')) {
+        generator.cleanup();
+      }
+    }
+  }
+
+}
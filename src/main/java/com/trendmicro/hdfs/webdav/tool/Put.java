@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.tool;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.jackrabbit.webdav.client.methods.MkColMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+
+/**
+ * Uploads a local tree to a remote collection. Collections are created
+ * with MKCOL, parents first, before any of their files are sent. Files go
+ * up concurrently over persistent connections, with the number in flight
+ * adapted to how the gateway responds, and failed requests are retried,
+ * which is safe as PUT and MKCOL are idempotent here.
+ */
+public class Put {
+
+  private static final int SC_SERVICE_UNAVAILABLE = 503;
+
+  /**
+   * Concurrency limit that grows by one after a full window of successes
+   * and shrinks when the gateway slows down or pushes back. Latency of
+   * small files is the signal, as it is dominated by gateway and NameNode
+   * work rather than bandwidth.
+   */
+  private static class AdaptiveLimit {
+    private final int max;
+    private int limit;
+    private int inFlight;
+    private int successes;
+    private long minNanos = Long.MAX_VALUE;
+
+    AdaptiveLimit(int initial, int max) {
+      this.max = max;
+      this.limit = Math.min(initial, max);
+    }
+
+    synchronized void acquire() throws InterruptedException {
+      while (inFlight >= limit) {
+        wait();
+      }
+      inFlight++;
+    }
+
+    synchronized void release() {
+      inFlight--;
+      notifyAll();
+    }
+
+    synchronized void onSuccess(long nanos, boolean small) {
+      if (small) {
+        minNanos = Math.min(minNanos, nanos);
+        if (nanos > 2 * minNanos) {
+          // Requests are queueing somewhere, back off gently
+          limit = Math.max(1, limit - 1);
+          successes = 0;
+          return;
+        }
+      }
+      if (++successes >= limit) {
+        successes = 0;
+        if (limit < max) {
+          limit++;
+          notifyAll();
+        }
+      }
+    }
+
+    synchronized void onOverload() {
+      limit = Math.max(1, limit / 2);
+      successes = 0;
+    }
+
+    synchronized int getLimit() {
+      return limit;
+    }
+  }
+
+  private final DavClient client;
+  private final AdaptiveLimit limit;
+  private final int threads;
+  private final int retries;
+  private final long smallFileSize;
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private Put(String url, int threads, int initial, int retries,
+      long smallFileSize) throws IOException {
+    this.client = new DavClient(url, threads);
+    this.limit = new AdaptiveLimit(initial, threads);
+    this.threads = threads;
+    this.retries = retries;
+    this.smallFileSize = smallFileSize;
+  }
+
+  private static boolean isRetriable(int code) {
+    return code >= 500 || code == 401;
+  }
+
+  private void backoff(int attempt) {
+    try {
+      Thread.sleep(Math.min(10000L, 100L << attempt));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void mkcol(String url) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      int code;
+      try {
+        code = client.executeAndRelease(new MkColMethod(url));
+      } catch (IOException e) {
+        if (attempt >= retries) {
+          throw e;
+        }
+        retried.incrementAndGet();
+        backoff(attempt);
+        continue;
+      }
+      // 405 means the collection is already there
+      if (code == 201 || code == 405) {
+        return;
+      }
+      if (!isRetriable(code) || attempt >= retries) {
+        throw new IOException("MKCOL " + url + " failed with status " + code);
+      }
+      retried.incrementAndGet();
+      backoff(attempt);
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    byte[] data = new byte[(int)file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private void put(File file, String url) throws Exception {
+    boolean small = file.length() <= smallFileSize;
+    // Small files are held in memory, so retries do not touch the disk
+    RequestEntity entity = small ?
+      new ByteArrayRequestEntity(readFully(file), "application/octet-stream") :
+      new FileRequestEntity(file, "application/octet-stream");
+    for (int attempt = 0; ; attempt++) {
+      PutMethod put = new PutMethod(url);
+      put.setRequestEntity(entity);
+      limit.acquire();
+      int code;
+      long start = System.nanoTime();
+      try {
+        code = client.executeAndRelease(put);
+      } catch (IOException e) {
+        limit.onOverload();
+        if (attempt >= retries) {
+          throw e;
+        }
+        retried.incrementAndGet();
+        backoff(attempt);
+        continue;
+      } finally {
+        limit.release();
+      }
+      if (code == 201 || code == 204) {
+        limit.onSuccess(System.nanoTime() - start, small);
+        files.incrementAndGet();
+        bytes.addAndGet(file.length());
+        return;
+      }
+      if (code == SC_SERVICE_UNAVAILABLE) {
+        limit.onOverload();
+      }
+      if (!isRetriable(code) || attempt >= retries) {
+        throw new IOException("PUT failed with status " + code);
+      }
+      retried.incrementAndGet();
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * Walk the tree breadth first, creating each collection before queueing
+   * the files in it
+   */
+  public void upload(File root, String url) throws Exception {
+    client.authenticate();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    LinkedList<File> dirs = new LinkedList<File>();
+    LinkedList<String> urls = new LinkedList<String>();
+    dirs.add(root);
+    urls.add(url);
+    try {
+      while (!dirs.isEmpty()) {
+        File dir = dirs.removeFirst();
+        String dirUrl = urls.removeFirst();
+        mkcol(dirUrl);
+        File[] children = dir.listFiles();
+        if (children == null) {
+          throw new IOException("Unable to list " + dir);
+        }
+        for (final File child: children) {
+          final String childUrl = dirUrl + "/" +
+            DavClient.encode(child.getName());
+          if (child.isDirectory()) {
+            dirs.add(child);
+            urls.add(childUrl);
+            continue;
+          }
+          pool.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                put(child, childUrl);
+              } catch (Exception e) {
+                failed.incrementAndGet();
+                System.err.println("Uploading " + child + " failed: " +
+                  e.getMessage());
+              }
+            }
+          });
+        }
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static void printUsageAndExit(Options options, int exitCode) {
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp("Usage: Put [options] dir url", "", options, "",
+      true);
+    System.exit(exitCode);
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Process command line
+
+    Options options = new Options();
+    options.addOption("t", "threads", true,
+      "Most uploads in flight (default 16)");
+    options.addOption("i", "initial", true,
+      "Uploads in flight at the start (default 4)");
+    options.addOption("r", "retries", true,
+      "Retries of a failed request (default 3)");
+    options.addOption("s", "small-file-size", true,
+      "Files up to this many bytes are buffered in memory (default 1048576)");
+
+    CommandLine cmd = null;
+    try {
+      cmd = new PosixParser().parse(options, args);
+    } catch (ParseException e) {
+      printUsageAndExit(options, -1);
+    }
+    args = cmd.getArgs();
+    if (args.length < 2) {
+      printUsageAndExit(options, -1);
+    }
+    String url = args[1].endsWith("/") ?
+      args[1].substring(0, args[1].length() - 1) : args[1];
+
+    // Do the upload
+
+    Put put = new Put(url,
+      Integer.parseInt(cmd.getOptionValue('t', "16")),
+      Integer.parseInt(cmd.getOptionValue('i', "4")),
+      Integer.parseInt(cmd.getOptionValue('r', "3")),
+      Long.parseLong(cmd.getOptionValue('s', "1048576")));
+    long start = System.nanoTime();
+    put.upload(new File(args[0]), url);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("Uploaded %d files (%d bytes) in %.2f s (%.2f MB/s), " +
+      "%d retries, %d failed, final concurrency %d%n", put.files.get(),
+      put.bytes.get(), seconds, put.bytes.get() / seconds / (1024 * 1024),
+      put.retried.get(), put.failed.get(), put.limit.getLimit());
+    if (put.failed.get() > 0) {
+      System.exit(1);
+    }
+  }
+
+}
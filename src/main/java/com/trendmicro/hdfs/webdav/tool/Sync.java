@@ -0,0 +1,511 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.DavException;
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.client.methods.MkColMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+import org.apache.jackrabbit.webdav.property.DavProperty;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.w3c.dom.Node;
+
+/**
+ * Mirrors a remote collection to a local directory, or a local directory
+ * to a remote collection. The remote tree is crawled with PROPFIND depth 1,
+ * one collection per task, over a bounded pool of workers sharing
+ * persistent connections. Files whose size and modification time (or
+ * size only, or ETag) match are skipped, so a rerun only moves what
+ * changed.
+ */
+public class Sync {
+
+  private enum Compare { SIZE, MTIME, ETAG }
+
+  /** ETags of downloaded files are kept here, in the local root */
+  static final String STATE_FILE = ".webdav-sync";
+
+  private static final DavPropertyNameSet LISTING_PROPERTIES =
+    new DavPropertyNameSet();
+  static {
+    LISTING_PROPERTIES.add(DavPropertyName.RESOURCETYPE);
+    LISTING_PROPERTIES.add(DavPropertyName.GETCONTENTLENGTH);
+    LISTING_PROPERTIES.add(DavPropertyName.GETLASTMODIFIED);
+    LISTING_PROPERTIES.add(DavPropertyName.GETETAG);
+  }
+
+  /** A member of a remote collection */
+  private static class Entry {
+    String name;
+    String url;
+    boolean collection;
+    long length = -1;
+    long modified = -1;
+    String etag;
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private final DavClient client;
+  private final Compare compare;
+  private final ExecutorService pool;
+  private final Properties etags = new Properties();
+  private final Object lock = new Object();
+  private int pending;
+  private final AtomicLong transferred = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private Sync(String url, int threads, Compare compare) throws IOException {
+    this.client = new DavClient(url, threads);
+    this.compare = compare;
+    this.pool = Executors.newFixedThreadPool(threads);
+  }
+
+  private void submit(final String what, final Task task) {
+    synchronized (lock) {
+      pending++;
+    }
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } catch (Exception e) {
+          failed.incrementAndGet();
+          System.err.println(what + " failed: " + e.getMessage());
+        } finally {
+          synchronized (lock) {
+            if (--pending == 0) {
+              lock.notifyAll();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  private void await() throws InterruptedException {
+    synchronized (lock) {
+      while (pending > 0) {
+        lock.wait();
+      }
+    }
+  }
+
+  private static String stripSlash(String path) {
+    return path.endsWith("/") && path.length() > 1 ?
+      path.substring(0, path.length() - 1) : path;
+  }
+
+  private static String getText(DavProperty<?> property) {
+    return property != null && property.getValue() != null ?
+      property.getValue().toString() : null;
+  }
+
+  private static boolean isCollection(DavPropertySet props) {
+    DavProperty<?> type = props.get(DavPropertyName.RESOURCETYPE);
+    Object value = type != null ? type.getValue() : null;
+    if (value instanceof Node) {
+      return "collection".equals(((Node)value).getLocalName());
+    }
+    if (value instanceof Collection<?>) {
+      for (Object o: (Collection<?>)value) {
+        if (o instanceof Node &&
+            "collection".equals(((Node)o).getLocalName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static long parseDate(String date) {
+    if (date == null) {
+      return -1;
+    }
+    SimpleDateFormat format =
+      (SimpleDateFormat)DavConstants.modificationDateFormat.clone();
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return format.parse(date).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * List the members of a remote collection, or return null if it does
+   * not exist
+   */
+  private List<Entry> list(String url) throws IOException {
+    PropFindMethod method = new PropFindMethod(url, LISTING_PROPERTIES,
+      DavConstants.DEPTH_1);
+    try {
+      int code = client.execute(method);
+      if (code == 404) {
+        return null;
+      }
+      if (code != 207) {
+        throw new IOException("PROPFIND " + url + " failed with status " +
+          code);
+      }
+      MultiStatus ms = method.getResponseBodyAsMultiStatus();
+      URL base = new URL(url);
+      String self = stripSlash(new URI(url).getPath());
+      List<Entry> entries = new ArrayList<Entry>();
+      for (MultiStatusResponse response: ms.getResponses()) {
+        URL href = new URL(base, response.getHref());
+        String path = stripSlash(href.toURI().getPath());
+        if (path.equals(self)) {
+          continue;
+        }
+        DavPropertySet props = response.getProperties(200);
+        Entry entry = new Entry();
+        entry.name = path.substring(path.lastIndexOf('/') + 1);
+        entry.url = href.toString();
+        entry.collection = isCollection(props);
+        String length = getText(props.get(DavPropertyName.GETCONTENTLENGTH));
+        if (length != null) try {
+          entry.length = Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+          // Unknown length, never matches
+        }
+        entry.modified =
+          parseDate(getText(props.get(DavPropertyName.GETLASTMODIFIED)));
+        entry.etag = getText(props.get(DavPropertyName.GETETAG));
+        entries.add(entry);
+      }
+      return entries;
+    } catch (DavException e) {
+      throw new IOException("Bad PROPFIND response for " + url, e);
+    } catch (URISyntaxException e) {
+      throw new IOException("Bad URL in PROPFIND response for " + url, e);
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  // Download
+
+  private boolean isUnchanged(Entry entry, File local) {
+    if (!local.isFile() || local.length() != entry.length) {
+      return false;
+    }
+    switch (compare) {
+    case SIZE:
+      return true;
+    case ETAG:
+      if (entry.etag != null) {
+        return entry.etag.equals(etags.getProperty(entry.url));
+      }
+      // No ETag from the server, fall back to times
+    default:
+      // HTTP dates have a resolution of seconds
+      return entry.modified >= 0 &&
+        local.lastModified() / 1000 == entry.modified / 1000;
+    }
+  }
+
+  private void download(final String url, final File dir) throws IOException {
+    List<Entry> entries = list(url);
+    if (entries == null) {
+      throw new IOException(url + " does not exist");
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    for (final Entry entry: entries) {
+      final File local = new File(dir, entry.name);
+      if (entry.collection) {
+        submit("Listing " + entry.url, new Task() {
+          public void run() throws Exception {
+            download(entry.url, local);
+          }
+        });
+      } else if (isUnchanged(entry, local)) {
+        skipped.incrementAndGet();
+      } else {
+        submit("Fetching " + entry.url, new Task() {
+          public void run() throws Exception {
+            fetch(entry, local);
+          }
+        });
+      }
+    }
+  }
+
+  private void fetch(Entry entry, File local) throws IOException {
+    GetMethod get = new GetMethod(entry.url);
+    // Write next to the target, so a failed transfer never leaves a
+    // truncated file that looks current
+    File part = new File(local.getParentFile(), "." + local.getName() +
+      ".part");
+    try {
+      int code = client.execute(get);
+      if (code != 200) {
+        throw new IOException("GET failed with status " + code);
+      }
+      InputStream in = get.getResponseBodyAsStream();
+      OutputStream out = new FileOutputStream(part);
+      long n = 0;
+      try {
+        byte[] buf = new byte[65536];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+          out.write(buf, 0, len);
+          n += len;
+        }
+      } finally {
+        out.close();
+      }
+      // A connection cut short ends the body quietly, so count the bytes
+      long expected = get.getResponseContentLength();
+      if (expected < 0) {
+        expected = entry.length;
+      }
+      if (expected >= 0 && n != expected) {
+        throw new IOException("Short transfer of " + entry.url + ", got " +
+          n + " of " + expected + " bytes");
+      }
+      if (local.exists() && !local.delete()) {
+        throw new IOException("Unable to replace " + local);
+      }
+      if (!part.renameTo(local)) {
+        throw new IOException("Unable to rename " + part + " to " + local);
+      }
+      if (entry.modified >= 0) {
+        local.setLastModified(entry.modified);
+      }
+      if (entry.etag != null) {
+        etags.setProperty(entry.url, entry.etag);
+      }
+      transferred.incrementAndGet();
+      bytes.addAndGet(n);
+    } finally {
+      get.releaseConnection();
+      part.delete();
+    }
+  }
+
+  // Upload
+
+  private void upload(final File dir, final String url) throws IOException {
+    List<Entry> entries = list(url);
+    if (entries == null) {
+      int code = client.executeAndRelease(new MkColMethod(url));
+      if (code != 201) {
+        throw new IOException("MKCOL " + url + " failed with status " + code);
+      }
+      entries = new ArrayList<Entry>(0);
+    }
+    Map<String, Entry> remote = new HashMap<String, Entry>();
+    for (Entry entry: entries) {
+      remote.put(entry.name, entry);
+    }
+    File[] children = dir.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + dir);
+    }
+    for (final File child: children) {
+      if (child.getName().equals(STATE_FILE)) {
+        continue;
+      }
+      final String childUrl = url + "/" + DavClient.encode(child.getName());
+      if (child.isDirectory()) {
+        submit("Uploading " + child, new Task() {
+          public void run() throws Exception {
+            upload(child, childUrl);
+          }
+        });
+        continue;
+      }
+      Entry entry = remote.get(child.getName());
+      // The server sets the modification time on upload, so a remote copy
+      // at least as new as the local file is current
+      if (entry != null && !entry.collection &&
+          entry.length == child.length() && (compare == Compare.SIZE ||
+            entry.modified >= child.lastModified() / 1000 * 1000)) {
+        skipped.incrementAndGet();
+        continue;
+      }
+      submit("Uploading " + child, new Task() {
+        public void run() throws Exception {
+          PutMethod put = new PutMethod(childUrl);
+          put.setRequestEntity(new FileRequestEntity(child,
+            "application/octet-stream"));
+          int code = client.executeAndRelease(put);
+          if (code != 201 && code != 204) {
+            throw new IOException("PUT failed with status " + code);
+          }
+          transferred.incrementAndGet();
+          bytes.addAndGet(child.length());
+        }
+      });
+    }
+  }
+
+  // Driver
+
+  private void loadState(File root) throws IOException {
+    File state = new File(root, STATE_FILE);
+    if (compare == Compare.ETAG && state.isFile()) {
+      InputStream in = new FileInputStream(state);
+      try {
+        etags.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private void saveState(File root) throws IOException {
+    if (compare == Compare.ETAG && !etags.isEmpty()) {
+      OutputStream out = new FileOutputStream(new File(root, STATE_FILE));
+      try {
+        etags.store(out, "ETags of files fetched by webdav sync");
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  public void pull(final String url, final File root) throws Exception {
+    loadState(root);
+    client.authenticate();
+    submit("Listing " + url, new Task() {
+      public void run() throws Exception {
+        download(url, root);
+      }
+    });
+    try {
+      await();
+    } finally {
+      pool.shutdown();
+      saveState(root);
+    }
+  }
+
+  public void push(final File root, final String url) throws Exception {
+    client.authenticate();
+    submit("Uploading " + root, new Task() {
+      public void run() throws Exception {
+        upload(root, url);
+      }
+    });
+    try {
+      await();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static boolean isUrl(String s) {
+    return s.startsWith("http://") || s.startsWith("https://");
+  }
+
+  private static void printUsageAndExit(Options options, int exitCode) {
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp("Usage: Sync [options] (url dir | dir url)", "",
+      options, "", true);
+    System.exit(exitCode);
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Process command line
+
+    Options options = new Options();
+    options.addOption("t", "threads", true,
+      "Parallel listings and transfers (default 8)");
+    options.addOption("c", "compare", true,
+      "How to detect unchanged files: size, mtime or etag (default mtime)");
+
+    CommandLine cmd = null;
+    try {
+      cmd = new PosixParser().parse(options, args);
+    } catch (org.apache.commons.cli.ParseException e) {
+      printUsageAndExit(options, -1);
+    }
+    args = cmd.getArgs();
+    if (args.length < 2 || isUrl(args[0]) == isUrl(args[1])) {
+      printUsageAndExit(options, -1);
+    }
+    int threads = Integer.parseInt(cmd.getOptionValue('t', "8"));
+    Compare compare =
+      Compare.valueOf(cmd.getOptionValue('c', "mtime").toUpperCase());
+
+    // Do the sync
+
+    long start = System.nanoTime();
+    Sync sync;
+    if (isUrl(args[0])) {
+      String url = stripSlash(args[0]);
+      sync = new Sync(url, threads, compare);
+      sync.pull(url, new File(args[1]));
+    } else {
+      String url = stripSlash(args[1]);
+      sync = new Sync(url, threads, compare);
+      sync.push(new File(args[0]), url);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("Transferred %d files (%d bytes), skipped %d " +
+      "unchanged, %d failed, in %.2f s%n", sync.transferred.get(),
+      sync.bytes.get(), sync.skipped.get(), sync.failed.get(), seconds);
+    if (sync.failed.get() > 0) {
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * DistributedFileSystem that counts the NameNode calls made through it, by
+ * every instance in the JVM. Install with {@link #configure(Configuration)}
+ * before the mini cluster is started.
+ */
+public class CountingFileSystem extends DistributedFileSystem {
+
+  private static final AtomicInteger calls = new AtomicInteger();
+
+  public static void configure(Configuration conf) {
+    conf.set("fs.hdfs.impl", CountingFileSystem.class.getName());
+  }
+
+  public static void reset() {
+    calls.set(0);
+  }
+
+  public static int getCalls() {
+    return calls.get();
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    calls.incrementAndGet();
+    return super.getFileStatus(f);
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path p) throws IOException {
+    calls.incrementAndGet();
+    return super.listStatus(p);
+  }
+
+  @Override
+  public ContentSummary getContentSummary(Path f) throws IOException {
+    calls.incrementAndGet();
+    return super.getContentSummary(f);
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    calls.incrementAndGet();
+    return super.open(f, bufferSize);
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission,
+      boolean overwrite, int bufferSize, short replication, long blockSize,
+      Progressable progress) throws IOException {
+    calls.incrementAndGet();
+    return super.create(f, permission, overwrite, bufferSize, replication,
+      blockSize, progress);
+  }
+
+  @Override
+  public FSDataOutputStream append(Path f, int bufferSize,
+      Progressable progress) throws IOException {
+    calls.incrementAndGet();
+    return super.append(f, bufferSize, progress);
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    calls.incrementAndGet();
+    return super.mkdirs(f, permission);
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    calls.incrementAndGet();
+    return super.rename(src, dst);
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    calls.incrementAndGet();
+    return super.delete(f, recursive);
+  }
+
+  @Override
+  public void setOwner(Path p, String username, String groupname)
+      throws IOException {
+    calls.incrementAndGet();
+    super.setOwner(p, username, groupname);
+  }
+
+  @Override
+  public void setPermission(Path p, FsPermission permission)
+      throws IOException {
+    calls.incrementAndGet();
+    super.setPermission(p, permission);
+  }
+
+  @Override
+  public void setTimes(Path p, long mtime, long atime) throws IOException {
+    calls.incrementAndGet();
+    super.setTimes(p, mtime, atime);
+  }
+
+}
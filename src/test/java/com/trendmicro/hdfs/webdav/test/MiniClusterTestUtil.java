@@ -32,8 +32,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.log4j.Level;
@@ -47,6 +50,7 @@ import org.mortbay.jetty.servlet.ServletHolder;
 
 import com.trendmicro.hdfs.webdav.AuthFilter;
 import com.trendmicro.hdfs.webdav.HDFSWebDAVServlet;
+import com.trendmicro.hdfs.webdav.Main;
 
 public class MiniClusterTestUtil {
 
@@ -176,13 +180,15 @@ public class MiniClusterTestUtil {
     servletServer.setSendServerVersion(false);
     servletServer.setSendDateHeader(false);
     servletServer.setStopAtShutdown(true);
+    servletServer.setThreadPool(Main.createThreadPool(getConfiguration()));
 
     SelectChannelConnector connector = new SelectChannelConnector();
     connector.setPort(port);
     servletServer.addConnector(connector);
 
     // Set up context
-    servletContext = new Context(servletServer, "/", Context.SESSIONS);
+    servletContext = new Context(servletServer, "/",
+      Main.getContextOptions(getConfiguration()));
     ServletHolder servletHolder = new ServletHolder(getServlet());
     servletHolder.setInitParameter("authenticate-header",
       "Basic realm=\"Hadoop WebDAV Server\"");
@@ -270,6 +276,53 @@ public class MiniClusterTestUtil {
     }
   }
 
+  /**
+   * Start the cluster and a gateway that may proxy for the "users" group
+   * and accepts simple and anonymous authentication, then create /test,
+   * writable by all and owned by the given user, holding a world readable
+   * file /test/pubdata with the given content
+   */
+  public void startMiniClusterWithPublicData(
+      UserGroupInformation gatewayUser, UserGroupInformation ownerUser,
+      final byte[] data) throws Exception {
+    Configuration conf = getConfiguration();
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".groups",
+        "users");
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".hosts",
+        "localhost");
+    conf.set("hadoop.webdav.authentication.type", "simple");
+    conf.setBoolean("hadoop.webdav.authentication.simple.anonymous.allowed",
+      true);
+
+    startMiniCluster(gatewayUser);
+    LOG.info("Gateway started on port " + getGatewayPort());
+
+    FsPermission.setUMask(conf, new FsPermission((short)0));
+
+    FileSystem fs = getTestFileSystem();
+    Path path = new Path("/test");
+    if (!fs.mkdirs(path,
+        new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL))) {
+      throw new IOException("Unable to create " + path);
+    }
+    fs.setOwner(path, ownerUser.getShortUserName(),
+      ownerUser.getGroupNames()[0]);
+
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        FSDataOutputStream os = getTestFileSystem().create(
+          new Path("/test/pubdata"),
+          new FsPermission(FsAction.ALL, FsAction.READ, FsAction.READ),
+          true, 4096, (short)1, 65536, null);
+        os.write(data);
+        os.close();
+        return null;
+      }
+    });
+  }
+
   public void shutdownMiniCluster() {
     shutdownHDFSWebDAVServlet();
     try {
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request body that sends half of its data, then waits for a latch before
+ * sending the rest, so the request stays in progress on the gateway
+ */
+public class StalledEntity implements RequestEntity {
+
+  private final byte[] data;
+  private final CountDownLatch latch;
+
+  public StalledEntity(byte[] data, CountDownLatch latch) {
+    this.data = data;
+    this.latch = latch;
+  }
+
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  public void writeRequest(OutputStream out) throws IOException {
+    out.write(data, 0, data.length / 2);
+    out.flush();
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    out.write(data, data.length / 2, data.length - data.length / 2);
+  }
+
+  public long getContentLength() {
+    return data.length;
+  }
+
+  public String getContentType() {
+    return "application/octet-stream";
+  }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+
+/**
+ * A PUT whose body stalls halfway until {@link #finish()} is called, to
+ * hold a server thread and whatever permits the request was given
+ */
+public class StalledPut extends Thread {
+
+  private static final Log LOG = LogFactory.getLog(StalledPut.class);
+
+  private final HttpClient client;
+  private final String url;
+  private final byte[] data;
+  private final CountDownLatch latch = new CountDownLatch(1);
+  private volatile int code;
+
+  public StalledPut(HttpClient client, String url, byte[] data) {
+    this.client = client;
+    this.url = url;
+    this.data = data;
+  }
+
+  @Override
+  public void run() {
+    PutMethod put = new PutMethod(url);
+    put.setRequestEntity(new StalledEntity(data, latch));
+    try {
+      code = client.executeMethod(put);
+    } catch (IOException e) {
+      LOG.error("Put failed", e);
+    } finally {
+      put.releaseConnection();
+    }
+  }
+
+  /**
+   * Let the rest of the body go and wait for the response. Returns its
+   * status code, or 0 if the request failed.
+   */
+  public int finish() throws InterruptedException {
+    latch.countDown();
+    join();
+    return code;
+  }
+
+}
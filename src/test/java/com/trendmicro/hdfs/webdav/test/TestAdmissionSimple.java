@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.AdmissionControl;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+public class TestAdmissionSimple {
+
+  private static final String testData = "This is an admission test!\r\n";
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    // One request per user and no waiting
+    conf.setInt(AdmissionControl.MAX_CONCURRENT_PER_USER_KEY, 1);
+    conf.setInt(AdmissionControl.QUEUE_SIZE_KEY, 0);
+    minicluster.startMiniClusterWithPublicData(gatewayUser, ownerUser,
+      testData.getBytes());
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    minicluster.shutdownMiniCluster();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int getInFlight() {
+    Gauge<Integer> gauge = (Gauge<Integer>)Metrics.defaultRegistry()
+      .allMetrics().get(new MetricName(AdmissionControl.class, "in-flight"));
+    return gauge != null ? gauge.value() : 0;
+  }
+
+  @Test
+  public void testPerUserLimit() throws Exception {
+    StalledPut putter = new StalledPut(minicluster.getClient(),
+      "http://localhost:" + minicluster.getGatewayPort() +
+      "/test/stalled?user.name=" + ownerUser.getShortUserName(),
+      testData.getBytes());
+    putter.start();
+    int putCode;
+    try {
+      // Wait until the stalled PUT holds the owner's only permit
+      for (int i = 0; i < 100 && getInFlight() == 0; i++) {
+        Thread.sleep(100);
+      }
+      assertEquals("Stalled PUT was not admitted", 1, getInFlight());
+
+      GetMethod get = new GetMethod("http://localhost:" +
+        minicluster.getGatewayPort() + "/test/pubdata?user.name=" +
+        ownerUser.getShortUserName());
+      try {
+        int code = minicluster.getClient().executeMethod(get);
+        assertEquals("Expected 503 response, got " + code, 503, code);
+        assertNotNull("Expected a Retry-After header",
+          get.getResponseHeader("Retry-After"));
+      } finally {
+        get.releaseConnection();
+      }
+
+      // Other users are not held up
+      get = new GetMethod("http://localhost:" +
+        minicluster.getGatewayPort() + "/test/pubdata");
+      try {
+        int code = minicluster.getClient().executeMethod(get);
+        assertEquals("Expected 200 response, got " + code, 200, code);
+      } finally {
+        get.releaseConnection();
+      }
+    } finally {
+      putCode = putter.finish();
+    }
+    assertEquals("Expected 201 response, got " + putCode, 201, putCode);
+  }
+
+}
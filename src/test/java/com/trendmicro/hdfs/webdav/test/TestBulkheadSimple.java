@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.Bulkhead;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+public class TestBulkheadSimple {
+
+  private static final String testData = "This is a bulkhead test!\r\n";
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    // One transfer at a time and no waiting
+    conf.setInt(Bulkhead.PREFIX + "transfer" + Bulkhead.MAX_CONCURRENT_SUFFIX,
+      1);
+    conf.setInt(Bulkhead.PREFIX + "transfer" + Bulkhead.QUEUE_SIZE_SUFFIX, 0);
+    minicluster.startMiniClusterWithPublicData(gatewayUser, ownerUser,
+      testData.getBytes());
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    minicluster.shutdownMiniCluster();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int getActiveTransfers() {
+    Gauge<Integer> gauge = (Gauge<Integer>)Metrics.defaultRegistry()
+      .allMetrics().get(new MetricName(Bulkhead.class, "active", "transfer"));
+    return gauge != null ? gauge.value() : 0;
+  }
+
+  @Test
+  public void testTransferPartition() throws Exception {
+    StalledPut putter = new StalledPut(minicluster.getClient(),
+      "http://localhost:" + minicluster.getGatewayPort() +
+      "/test/stalled?user.name=" + ownerUser.getShortUserName(),
+      testData.getBytes());
+    putter.start();
+    int putCode;
+    try {
+      // Wait until the stalled PUT fills the transfer partition
+      for (int i = 0; i < 100 && getActiveTransfers() == 0; i++) {
+        Thread.sleep(100);
+      }
+      assertEquals("Stalled PUT was not admitted", 1, getActiveTransfers());
+
+      GetMethod get = new GetMethod("http://localhost:" +
+        minicluster.getGatewayPort() + "/test/pubdata");
+      try {
+        int code = minicluster.getClient().executeMethod(get);
+        assertEquals("Expected 503 response, got " + code, 503, code);
+      } finally {
+        get.releaseConnection();
+      }
+
+      // Metadata requests are not held up
+      PropFindMethod propfind = new PropFindMethod("http://localhost:" +
+        minicluster.getGatewayPort() + "/test/pubdata",
+        DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_0);
+      try {
+        int code = minicluster.getClient().executeMethod(propfind);
+        assertEquals("Expected 207 response, got " + code, 207, code);
+      } finally {
+        propfind.releaseConnection();
+      }
+    } finally {
+      putCode = putter.finish();
+    }
+    assertEquals("Expected 201 response, got " + putCode, 201, putCode);
+  }
+
+}
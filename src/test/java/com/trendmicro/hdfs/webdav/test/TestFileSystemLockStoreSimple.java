@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.FileSystemLockStore;
+import com.trendmicro.hdfs.webdav.PathLock;
+
+public class TestFileSystemLockStoreSimple {
+
+  private static final AtomicInteger tokens = new AtomicInteger();
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static Configuration conf;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    minicluster.startMiniDFSCluster(1);
+    conf = new Configuration(minicluster.getConfiguration());
+    conf.set(FileSystemLockStore.DIR_KEY, "/locks");
+    // Every lookup goes to the file system, as if from another gateway
+    conf.setLong(FileSystemLockStore.LEASE_KEY, 1);
+  }
+
+  @AfterClass
+  public static void cleanup() throws Exception {
+    minicluster.shutdownMiniDFSCluster();
+  }
+
+  private static PathLock newLock(String path, boolean deep, long timeout) {
+    return new PathLock(path, "opaquelocktoken:test-" +
+      tokens.incrementAndGet(), "test", deep,
+      System.currentTimeMillis() + timeout);
+  }
+
+  @Test
+  public void testConflicts() throws Exception {
+    FileSystemLockStore a = new FileSystemLockStore(conf);
+    FileSystemLockStore b = new FileSystemLockStore(conf);
+    PathLock lock = newLock("/user/a/file", false, 60000);
+    assertTrue(a.addLock(lock));
+    assertFalse(b.addLock(newLock("/user/a/file", false, 60000)));
+    // A depth infinity lock is refused while something below is locked
+    assertFalse(b.addLock(newLock("/user/a", true, 60000)));
+    assertEquals(1, b.getLocksBelow("/user").size());
+    assertEquals(lock.getToken(), b.getLock("/user/a/file").getToken());
+    assertTrue(a.removeLock(lock));
+    assertFalse(a.removeLock(lock));
+    PathLock deep = newLock("/user/a", true, 60000);
+    assertTrue(b.addLock(deep));
+    assertEquals(deep.getToken(), a.getLock("/user/a/file").getToken());
+    assertTrue(b.removeLock(deep));
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    FileSystemLockStore a = new FileSystemLockStore(conf);
+    FileSystemLockStore b = new FileSystemLockStore(conf);
+    PathLock lock = newLock("/user/refresh", false, 60000);
+    assertTrue(a.addLock(lock));
+    lock.setTimeout(120000);
+    a.refreshLock(lock);
+    assertEquals(lock.getToken(), b.getLock("/user/refresh").getToken());
+    try {
+      b.refreshLock(newLock("/user/refresh", false, 60000));
+      fail("Refreshed a lock that is not held");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(b.removeLock(b.getLock("/user/refresh")));
+    assertNull(a.getLock("/user/refresh"));
+  }
+
+  @Test
+  public void testRaceForExpiredLock() throws Exception {
+    assertTrue(new FileSystemLockStore(conf).addLock(
+      newLock("/user/expired", false, 50)));
+    Thread.sleep(200);
+    // Every gateway sees the same expired lock, only one may replace it
+    final int gateways = 8;
+    final AtomicInteger won = new AtomicInteger();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < gateways; i++) {
+      final FileSystemLockStore store = new FileSystemLockStore(conf);
+      Thread worker = new Thread() {
+        public void run() {
+          try {
+            if (store.addLock(newLock("/user/expired", false, 60000))) {
+              won.incrementAndGet();
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      workers.add(worker);
+    }
+    for (Thread worker: workers) {
+      worker.start();
+    }
+    for (Thread worker: workers) {
+      worker.join(60000);
+    }
+    assertTrue("Errors: " + errors, errors.isEmpty());
+    assertEquals(1, won.get());
+  }
+
+  @Test
+  public void testGenerationsOnlyGrow() throws Exception {
+    FileSystem fs = FileSystem.get(conf);
+    FileSystemLockStore store = new FileSystemLockStore(conf);
+    PathLock lock = newLock("/user/generations", false, 60000);
+    assertTrue(store.addLock(lock));
+    assertTrue(store.removeLock(lock));
+    // The release leaves a tombstone, so the next lock is not generation 1
+    assertTrue(fs.exists(new Path("/locks/_user/_generations/lock.2")));
+    assertNull(store.getLock("/user/generations"));
+    assertTrue(store.addLock(newLock("/user/generations", false, 60000)));
+    assertTrue(fs.exists(new Path("/locks/_user/_generations/lock.3")));
+    assertFalse(fs.exists(new Path("/locks/_user/_generations/lock.1")));
+  }
+
+  @Test
+  public void testRaceForAncestorAndDescendant() throws Exception {
+    final FileSystemLockStore a = new FileSystemLockStore(conf);
+    final FileSystemLockStore b = new FileSystemLockStore(conf);
+    for (int i = 0; i < 10; i++) {
+      final PathLock parent = newLock("/user/race" + i, true, 60000);
+      final PathLock child = newLock("/user/race" + i + "/child", false,
+        60000);
+      final boolean[] won = new boolean[2];
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      Thread first = new Thread() {
+        public void run() {
+          try {
+            won[0] = a.addLock(parent);
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      Thread second = new Thread() {
+        public void run() {
+          try {
+            won[1] = b.addLock(child);
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      first.start();
+      second.start();
+      first.join(60000);
+      second.join(60000);
+      assertTrue("Errors: " + errors, errors.isEmpty());
+      assertFalse("Both the ancestor and the descendant were locked",
+        won[0] && won[1]);
+    }
+  }
+
+  @Test
+  public void testIncompleteLockFileIsHeld() throws Exception {
+    FileSystem fs = FileSystem.get(conf);
+    FSDataOutputStream out =
+      fs.create(new Path("/locks/_user/_incomplete/lock.1"), false);
+    out.writeShort(0);
+    out.close();
+    FileSystemLockStore store = new FileSystemLockStore(conf);
+    assertNotNull(store.getLock("/user/incomplete"));
+    assertFalse(store.addLock(newLock("/user/incomplete", false, 60000)));
+  }
+
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.security.PrivilegedExceptionAction;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +39,11 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.trendmicro.hdfs.webdav.ProxyUserCache;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
 public class TestGetSimple {
 
   private static final Log LOG = LogFactory.getLog(TestGetSimple.class);
@@ -117,6 +123,8 @@ public class TestGetSimple {
       String data = get.getResponseBodyAsString();
       assertEquals("Response body was not as expected, wanted '" +
         testPublicData + "', got '" + data + "'", testPublicData, data);
+      assertEquals("Expected a Content-Length",
+        testPublicData.getBytes().length, get.getResponseContentLength());
     } catch (IOException e) {
       LOG.error("Get failed", e);
       fail("Get failed with an exception");
@@ -159,4 +167,40 @@ public class TestGetSimple {
     }
   }
 
+  private static long getProxyUserHits() {
+    Counter hits = (Counter)Metrics.defaultRegistry().allMetrics().get(
+      new MetricName(ProxyUserCache.class, "cache-hits"));
+    return hits != null ? hits.count() : 0;
+  }
+
+  @Test
+  public void testProxyUserReused() throws IOException {
+    // Warm the cache, then expect a hit for each further request
+    testGetOwnerPrivate();
+    long hits = getProxyUserHits();
+    testGetOwnerPrivate();
+    testGetOwnerPrivate();
+    assertEquals("Proxy user was not reused", hits + 2, getProxyUserHits());
+  }
+
+  @Test
+  public void testNoSessions() {
+    assertNull("Servlet sessions should be off by default",
+      minicluster.getServletContext().getSessionHandler());
+    GetMethod get = new GetMethod("http://localhost:" +
+      minicluster.getGatewayPort() + "/test/pubdata");
+    try {
+      int code = minicluster.getClient().executeMethod(get);
+      assertEquals("Expected 200 response, got " + code, 200, code);
+      Header cookie = get.getResponseHeader("Set-Cookie");
+      assertTrue("No session cookie expected", cookie == null ||
+        !cookie.getValue().startsWith("JSESSIONID"));
+    } catch (IOException e) {
+      LOG.error("Get failed", e);
+      fail("Get failed with an exception");
+    } finally {
+      get.releaseConnection();
+    }
+  }
+
 }
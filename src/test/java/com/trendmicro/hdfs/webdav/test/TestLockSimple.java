@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.client.methods.DeleteMethod;
+import org.apache.jackrabbit.webdav.client.methods.LockMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+import org.apache.jackrabbit.webdav.client.methods.UnLockMethod;
+import org.apache.jackrabbit.webdav.lock.Scope;
+import org.apache.jackrabbit.webdav.lock.Type;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestLockSimple {
+
+  private static final Log LOG = LogFactory.getLog(TestLockSimple.class);
+
+  private static final String testData = "This is some lock test data!\r\n";
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".groups",
+        "users");
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".hosts",
+        "localhost");
+    conf.set("hadoop.webdav.authentication.type", "simple");
+    conf.setBoolean("hadoop.webdav.authentication.simple.anonymous.allowed",
+      true);
+
+    minicluster.startMiniCluster(gatewayUser);
+    LOG.info("Gateway started on port " + minicluster.getGatewayPort());
+
+    FsPermission.setUMask(conf, new FsPermission((short)0));
+
+    FileSystem fs = minicluster.getTestFileSystem();
+    Path path = new Path("/test");
+    assertTrue(fs.mkdirs(path,
+      new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL)));
+    fs.setOwner(path, ownerUser.getShortUserName(),
+      ownerUser.getGroupNames()[0]);
+
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        FileSystem fs = minicluster.getTestFileSystem();
+        assertTrue(fs.mkdirs(new Path("/test/dir1"),
+          new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL)));
+        for (String name: new String[] { "/test/file1", "/test/dir1/file2" }) {
+          FSDataOutputStream os = fs.create(new Path(name),
+            new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL),
+            true, 4096, (short)1, 65536, null);
+          assertNotNull(os);
+          os.write(testData.getBytes());
+          os.close();
+        }
+        return null;
+      }
+    });
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    minicluster.shutdownMiniCluster();
+  }
+
+  private String getUrl(String path) {
+    return "http://localhost:" + minicluster.getGatewayPort() + path +
+      "?user.name=" + ownerUser.getShortUserName();
+  }
+
+  private LockMethod lock(String path, boolean deep, int expected)
+      throws IOException {
+    LockMethod lock = new LockMethod(getUrl(path), Scope.EXCLUSIVE,
+      Type.WRITE, ownerUser.getShortUserName(), 60000, deep);
+    try {
+      int code = minicluster.getClient().executeMethod(lock);
+      assertEquals("Expected " + expected + " response, got " + code,
+        expected, code);
+      return lock;
+    } finally {
+      lock.releaseConnection();
+    }
+  }
+
+  private void unlock(String path, String token, int expected)
+      throws IOException {
+    UnLockMethod unlock = new UnLockMethod(getUrl(path), token);
+    try {
+      int code = minicluster.getClient().executeMethod(unlock);
+      assertEquals("Expected " + expected + " response, got " + code,
+        expected, code);
+    } finally {
+      unlock.releaseConnection();
+    }
+  }
+
+  private int execute(HttpMethod method, String token) throws IOException {
+    if (token != null) {
+      method.setRequestHeader("If", "(<" + token + ">)");
+    }
+    try {
+      return minicluster.getClient().executeMethod(method);
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  private int put(String path, String token) throws IOException {
+    PutMethod put = new PutMethod(getUrl(path));
+    put.setRequestEntity(new ByteArrayRequestEntity(testData.getBytes()));
+    return execute(put, token);
+  }
+
+  private int delete(String path, String token) throws IOException {
+    return execute(new DeleteMethod(getUrl(path)), token);
+  }
+
+  @Test
+  public void testLockUnlock() throws Exception {
+    LockMethod lock = lock("/test/file1", false, 200);
+    String token = lock.getLockToken();
+    assertNotNull("Lock response did not carry a lock token", token);
+    // A second exclusive lock must be refused while the first is held
+    lock("/test/file1", false, 423);
+    unlock("/test/file1", token, 204);
+    // ... and granted again once it is released
+    token = lock("/test/file1", false, 200).getLockToken();
+    unlock("/test/file1", token, 204);
+  }
+
+  @Test
+  public void testDeepLock() throws Exception {
+    String token = lock("/test/dir1", true, 200).getLockToken();
+    assertNotNull("Lock response did not carry a lock token", token);
+    // Members are covered by the depth infinity lock on their collection
+    lock("/test/dir1/file2", false, 423);
+    unlock("/test/dir1", token, 204);
+    // A depth infinity lock is refused while a member is locked
+    token = lock("/test/dir1/file2", false, 200).getLockToken();
+    lock("/test/dir1", true, 423);
+    unlock("/test/dir1/file2", token, 204);
+  }
+
+  @Test
+  public void testWriteNeedsToken() throws Exception {
+    String token = lock("/test/file1", false, 200).getLockToken();
+    // Without the token the locked file can neither be changed nor deleted
+    assertEquals(423, put("/test/file1", null));
+    assertEquals(423, delete("/test/file1", null));
+    assertEquals(204, put("/test/file1", token));
+    unlock("/test/file1", token, 204);
+  }
+
+  @Test
+  public void testCreateInLockedCollection() throws Exception {
+    String token = lock("/test/dir1", true, 200).getLockToken();
+    assertEquals(423, put("/test/dir1/file3", null));
+    assertEquals(423, delete("/test/dir1/file2", null));
+    assertEquals(201, put("/test/dir1/file3", token));
+    unlock("/test/dir1", token, 204);
+  }
+
+  @Test
+  public void testDeleteReleasesLock() throws Exception {
+    assertEquals(201, put("/test/file4", null));
+    String token = lock("/test/file4", false, 200).getLockToken();
+    assertEquals(204, delete("/test/file4", token));
+    // The lock went with the file, so it does not block a new one
+    assertEquals(201, put("/test/file4", null));
+  }
+
+}
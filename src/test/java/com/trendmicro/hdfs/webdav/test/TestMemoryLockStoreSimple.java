@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.MemoryLockStore;
+import com.trendmicro.hdfs.webdav.PathLock;
+
+public class TestMemoryLockStoreSimple {
+
+  private static final AtomicInteger tokens = new AtomicInteger();
+
+  private MemoryLockStore store;
+
+  @Before
+  public void setup() {
+    store = new MemoryLockStore(new Configuration());
+  }
+
+  @After
+  public void cleanup() {
+    store.close();
+  }
+
+  private static PathLock newLock(String path, boolean deep, long timeout) {
+    return new PathLock(path, "opaquelocktoken:test-" +
+      tokens.incrementAndGet(), "test", deep,
+      System.currentTimeMillis() + timeout);
+  }
+
+  @Test
+  public void testConflicts() throws Exception {
+    PathLock a = newLock("/user/a/file", false, 60000);
+    assertTrue(store.addLock(a));
+    assertFalse(store.addLock(newLock("/user/a/file", false, 60000)));
+    // A depth infinity lock is refused while something below is locked
+    assertFalse(store.addLock(newLock("/user/a", true, 60000)));
+    assertTrue(store.addLock(newLock("/user/b", true, 60000)));
+    assertNotNull(store.getLock("/user/b/file"));
+    assertFalse(store.addLock(newLock("/user/b/file", false, 60000)));
+    assertEquals(1, store.getLocksBelow("/user/a").size());
+    assertEquals(2, store.getLocksBelow("/").size());
+    assertTrue(store.removeLock(a));
+    assertFalse(store.removeLock(a));
+    assertTrue(store.addLock(newLock("/user/a", true, 60000)));
+  }
+
+  @Test
+  public void testLocksBelowStayInSubtree() throws Exception {
+    assertTrue(store.addLock(newLock("/user/d/file", false, 60000)));
+    assertTrue(store.addLock(newLock("/user/d/dir/file", false, 60000)));
+    // Siblings sharing a name prefix are not below the path
+    assertTrue(store.addLock(newLock("/user/dd/file", false, 60000)));
+    assertTrue(store.addLock(newLock("/user/d-file", false, 60000)));
+    assertEquals(2, store.getLocksBelow("/user/d").size());
+    assertEquals(1, store.getLocksBelow("/user/d/dir").size());
+    assertEquals(4, store.getLocksBelow("/user").size());
+  }
+
+  @Test
+  public void testExpiredLockBelow() throws Exception {
+    assertTrue(store.addLock(newLock("/user/c/file", false, 50)));
+    Thread.sleep(200);
+    // Not reaped yet, but no longer in the way
+    assertNull(store.getLock("/user/c/file"));
+    assertTrue(store.getLocksBelow("/user/c").isEmpty());
+    assertTrue(store.addLock(newLock("/user/c", true, 60000)));
+  }
+
+  @Test
+  public void testConcurrentSiblings() throws Exception {
+    final int threads = 8;
+    final int locks = 1000;
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      Thread worker = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < locks; i++) {
+              PathLock lock = newLock("/user/u" + id + "/f" + i,
+                i % 2 == 0, 60000);
+              assertTrue(store.addLock(lock));
+              assertTrue(store.removeLock(lock));
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker: workers) {
+      worker.join(60000);
+      assertFalse("Lock store deadlocked", worker.isAlive());
+    }
+    assertTrue("Errors: " + errors, errors.isEmpty());
+    assertTrue(store.getLocksBelow("/").isEmpty());
+    // Once all siblings are gone the parent can be locked deeply
+    assertTrue(store.addLock(newLock("/user", true, 60000)));
+  }
+
+}
@@ -39,6 +39,10 @@ import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.MultiStatus;
 import org.apache.jackrabbit.webdav.MultiStatusResponse;
 import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.apache.jackrabbit.webdav.security.SecurityConstants;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -223,4 +227,38 @@ public class TestPropfindSimple {
     }
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testPropfindByName() throws Exception {
+    DavPropertyNameSet names = new DavPropertyNameSet();
+    names.add(DavPropertyName.GETCONTENTLENGTH);
+    names.add(DavPropertyName.GETLASTMODIFIED);
+    names.add(DavPropertyName.RESOURCETYPE);
+    PropFindMethod pfind = new PropFindMethod("http://localhost:" +
+        minicluster.getGatewayPort() + "/test/public?user.name=" +
+        ownerUser.getShortUserName(), names, DavConstants.DEPTH_1);
+    try {
+      int code = minicluster.getClient().executeMethod(pfind);
+      assertEquals("Expected 207 response, got " + code, 207, code);
+      MultiStatus status = pfind.getResponseBodyAsMultiStatus();
+      boolean found = false;
+      for (MultiStatusResponse response: status.getResponses()) {
+        DavPropertySet props = response.getProperties(200);
+        assertNotNull(props.get(DavPropertyName.RESOURCETYPE));
+        // Only the requested properties are returned
+        assertNull(props.get(SecurityConstants.OWNER));
+        assertNull(props.get(DavPropertyName.DISPLAYNAME));
+        if (response.getHref().equals(publicFilePaths[0].toString())) {
+          found = true;
+          assertEquals(String.valueOf(testPublicData.length()),
+            props.get(DavPropertyName.GETCONTENTLENGTH).getValue());
+          assertNotNull(props.get(DavPropertyName.GETLASTMODIFIED));
+        }
+      }
+      assertTrue(publicFilePaths[0] + " missing from propfind results",
+        found);
+    } finally {
+      pfind.releaseConnection();
+    }
+  }
+
+}
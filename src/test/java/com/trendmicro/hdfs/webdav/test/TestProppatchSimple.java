@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.client.methods.DeleteMethod;
+import org.apache.jackrabbit.webdav.client.methods.MoveMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropPatchMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+import org.apache.jackrabbit.webdav.property.DavProperty;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.apache.jackrabbit.webdav.property.DefaultDavProperty;
+import org.apache.jackrabbit.webdav.xml.Namespace;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestProppatchSimple {
+
+  private static final Log LOG = LogFactory.getLog(TestProppatchSimple.class);
+
+  private static final String testData = "This is some proppatch test data!\r\n";
+
+  private static final DavPropertyName TAG_PROPERTY =
+    DavPropertyName.create("tag",
+      Namespace.getNamespace("urn:x-test:webdav"));
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation otherUser =
+    UserGroupInformation.createUserForTesting("other",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".groups",
+        "users");
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".hosts",
+        "localhost");
+    conf.set("hadoop.webdav.authentication.type", "simple");
+    conf.setBoolean("hadoop.webdav.authentication.simple.anonymous.allowed",
+      true);
+
+    minicluster.startMiniCluster(gatewayUser);
+    LOG.info("Gateway started on port " + minicluster.getGatewayPort());
+
+    FsPermission.setUMask(conf, new FsPermission((short)0));
+
+    FileSystem fs = minicluster.getTestFileSystem();
+    Path path = new Path("/test");
+    assertTrue(fs.mkdirs(path,
+      new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL)));
+    fs.setOwner(path, ownerUser.getShortUserName(),
+      ownerUser.getGroupNames()[0]);
+
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        FileSystem fs = minicluster.getTestFileSystem();
+        FSDataOutputStream os = fs.create(new Path("/test/file1"),
+          new FsPermission(FsAction.ALL, FsAction.READ, FsAction.NONE),
+          true, 4096, (short)1, 65536, null);
+        assertNotNull(os);
+        os.write(testData.getBytes());
+        os.close();
+        // Others may read but not write here
+        Path dir = new Path("/test/readonly");
+        assertTrue(fs.mkdirs(dir, new FsPermission(FsAction.ALL,
+          FsAction.READ_EXECUTE, FsAction.READ_EXECUTE)));
+        fs.create(new Path(dir, "file")).close();
+        assertTrue(fs.mkdirs(new Path("/test/dir1")));
+        dir = new Path("/test/shared");
+        assertTrue(fs.mkdirs(dir, new FsPermission(FsAction.ALL,
+          FsAction.READ_EXECUTE, FsAction.READ_EXECUTE)));
+        fs.create(new Path(dir, "file")).close();
+        fs.create(new Path("/test/dir1/file")).close();
+        return null;
+      }
+    });
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    minicluster.shutdownMiniCluster();
+  }
+
+  private String getUrl(String path) {
+    return getUrl(path, ownerUser);
+  }
+
+  private String getUrl(String path, UserGroupInformation user) {
+    return "http://localhost:" + minicluster.getGatewayPort() + path +
+      "?user.name=" + user.getShortUserName();
+  }
+
+  private int proppatch(String path, DavPropertySet set) throws Exception {
+    PropPatchMethod patch = new PropPatchMethod(getUrl(path), set,
+      new DavPropertyNameSet());
+    try {
+      int code = minicluster.getClient().executeMethod(patch);
+      assertEquals("Expected 207 response, got " + code, 207, code);
+      MultiStatus status = patch.getResponseBodyAsMultiStatus();
+      return status.getResponses()[0].getStatus()[0].getStatusCode();
+    } finally {
+      patch.releaseConnection();
+    }
+  }
+
+  @Test
+  public void testProppatchDeadProperty() throws Exception {
+    DavPropertySet set = new DavPropertySet();
+    set.add(new DefaultDavProperty<String>(TAG_PROPERTY, "important"));
+    assertEquals(200, proppatch("/test/file1", set));
+
+    DavPropertyNameSet names = new DavPropertyNameSet();
+    names.add(TAG_PROPERTY);
+    PropFindMethod pfind = new PropFindMethod(getUrl("/test/file1"), names,
+      DavConstants.DEPTH_0);
+    try {
+      int code = minicluster.getClient().executeMethod(pfind);
+      assertEquals("Expected 207 response, got " + code, 207, code);
+      MultiStatusResponse response =
+        pfind.getResponseBodyAsMultiStatus().getResponses()[0];
+      DavProperty<?> tag = response.getProperties(200).get(TAG_PROPERTY);
+      assertNotNull("Dead property missing from propfind results", tag);
+      assertEquals("important", tag.getValue());
+    } finally {
+      pfind.releaseConnection();
+    }
+
+    // The properties are persisted next to the file, not listed as a member
+    FileSystem fs = minicluster.getTestFileSystem();
+    assertTrue(fs.exists(new Path("/test/.webdav.properties")));
+  }
+
+  private DavProperty<?> getTag(String path) throws Exception {
+    return getTag(path, ownerUser);
+  }
+
+  private DavProperty<?> getTag(String path, UserGroupInformation user)
+      throws Exception {
+    DavPropertyNameSet names = new DavPropertyNameSet();
+    names.add(TAG_PROPERTY);
+    PropFindMethod pfind = new PropFindMethod(getUrl(path, user), names,
+      DavConstants.DEPTH_0);
+    try {
+      int code = minicluster.getClient().executeMethod(pfind);
+      assertEquals("Expected 207 response, got " + code, 207, code);
+      MultiStatusResponse response =
+        pfind.getResponseBodyAsMultiStatus().getResponses()[0];
+      return response.getProperties(200).get(TAG_PROPERTY);
+    } finally {
+      pfind.releaseConnection();
+    }
+  }
+
+  @Test
+  public void testProppatchNotWritable() throws Exception {
+    DavPropertySet set = new DavPropertySet();
+    set.add(new DefaultDavProperty<String>(TAG_PROPERTY, "lost"));
+    PropPatchMethod patch = new PropPatchMethod(
+      getUrl("/test/readonly/file", otherUser), set,
+      new DavPropertyNameSet());
+    try {
+      int code = minicluster.getClient().executeMethod(patch);
+      // The change could not be written, so it must not be acknowledged
+      assertTrue("Expected an error response, got " + code, code >= 400);
+    } finally {
+      patch.releaseConnection();
+    }
+    assertNull(getTag("/test/readonly/file"));
+  }
+
+  @Test
+  public void testMoveCollectionWithProperties() throws Exception {
+    DavPropertySet set = new DavPropertySet();
+    set.add(new DefaultDavProperty<String>(TAG_PROPERTY, "moved"));
+    assertEquals(200, proppatch("/test/dir1/file", set));
+    MoveMethod move = new MoveMethod(getUrl("/test/dir1"),
+      "http://localhost:" + minicluster.getGatewayPort() + "/test/dir2",
+      false);
+    try {
+      int code = minicluster.getClient().executeMethod(move);
+      assertEquals("Expected 201 response, got " + code, 201, code);
+    } finally {
+      move.releaseConnection();
+    }
+    DavProperty<?> tag = getTag("/test/dir2/file");
+    assertNotNull("Dead property lost in move", tag);
+    assertEquals("moved", tag.getValue());
+    // Nothing was written back to the old location
+    FileSystem fs = minicluster.getTestFileSystem();
+    assertFalse(fs.exists(new Path("/test/dir1")));
+  }
+
+  @Test
+  public void testPropertiesNotSharedWithoutAccess() throws Exception {
+    DavPropertySet set = new DavPropertySet();
+    set.add(new DefaultDavProperty<String>(TAG_PROPERTY, "secret"));
+    assertEquals(200, proppatch("/test/shared/file", set));
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        minicluster.getTestFileSystem().setPermission(
+          new Path("/test/shared/.webdav.properties"),
+          new FsPermission(FsAction.READ_WRITE, FsAction.NONE,
+            FsAction.NONE));
+        return null;
+      }
+    });
+    assertNotNull(getTag("/test/shared/file"));
+    // Cached for the owner, but the other user may not read the file
+    assertNull(getTag("/test/shared/file", otherUser));
+  }
+
+  private int execute(HttpMethod method) throws Exception {
+    try {
+      return minicluster.getClient().executeMethod(method);
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  @Test
+  public void testSidecarNotAccessible() throws Exception {
+    String url = getUrl("/test/.webdav.properties");
+    assertEquals(403, execute(new GetMethod(url)));
+    PutMethod put = new PutMethod(url);
+    put.setRequestEntity(new ByteArrayRequestEntity(testData.getBytes()));
+    assertEquals(403, execute(put));
+    assertEquals(403, execute(new DeleteMethod(url)));
+  }
+
+  @Test
+  public void testProppatchLiveProperty() throws Exception {
+    DavPropertySet set = new DavPropertySet();
+    set.add(new DefaultDavProperty<String>(DavPropertyName.GETCONTENTLENGTH,
+      "0"));
+    assertEquals(403, proppatch("/test/file1", set));
+  }
+
+}
@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.client.methods.CopyMethod;
+import org.apache.jackrabbit.webdav.client.methods.DeleteMethod;
+import org.apache.jackrabbit.webdav.client.methods.MkColMethod;
+import org.apache.jackrabbit.webdav.client.methods.MoveMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.GetFastPath;
+
+/**
+ * Asserts the most NameNode calls each WebDAV operation may make, so a
+ * change that turns O(1) calls into O(N) fails here rather than in
+ * production. Raise a budget only with good reason.
+ */
+public class TestRpcBudgetSimple {
+
+  private static final Log LOG = LogFactory.getLog(TestRpcBudgetSimple.class);
+
+  private static final int GET_BUDGET = 2;
+  // The file status comes from the fast path's cache, only the open is left
+  private static final int GET_CACHED_BUDGET = 1;
+  private static final int HEAD_BUDGET = 1;
+  private static final int PROPFIND_0_BUDGET = 3;
+  private static final int PROPFIND_1_BUDGET = 4;
+  private static final int PUT_BUDGET = 3;
+  private static final int MKCOL_BUDGET = 3;
+  private static final int DELETE_BUDGET = 4;
+  private static final int MOVE_BUDGET = 6;
+  private static final int COPY_BUDGET = 8;
+
+  private static final String testData = "This is an RPC budget test!\r\n";
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".groups",
+        "users");
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".hosts",
+        "localhost");
+    conf.set("hadoop.webdav.authentication.type", "simple");
+    conf.setBoolean("hadoop.webdav.authentication.simple.anonymous.allowed",
+      true);
+    conf.setLong(GetFastPath.STATUS_CACHE_TTL_KEY, 60000);
+    CountingFileSystem.configure(conf);
+
+    minicluster.startMiniCluster(gatewayUser);
+    LOG.info("Gateway started on port " + minicluster.getGatewayPort());
+
+    FsPermission.setUMask(conf, new FsPermission((short)0));
+
+    FileSystem fs = minicluster.getTestFileSystem();
+    Path path = new Path("/test");
+    assertTrue(fs.mkdirs(path,
+      new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL)));
+    fs.setOwner(path, ownerUser.getShortUserName(),
+      ownerUser.getGroupNames()[0]);
+
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        FileSystem fs = minicluster.getTestFileSystem();
+        createFile(fs, new Path("/test/file"));
+        createFile(fs, new Path("/test/delete"));
+        createFile(fs, new Path("/test/move"));
+        createFile(fs, new Path("/test/gone"));
+        createFile(fs, new Path("/test/movedir/file"));
+        for (int i = 0; i < 10; i++) {
+          createFile(fs, new Path("/test/small/file" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+          createFile(fs, new Path("/test/large/file" + i));
+        }
+        return null;
+      }
+    });
+  }
+
+  private static void createFile(FileSystem fs, Path path)
+      throws IOException {
+    FSDataOutputStream os = fs.create(path, true);
+    assertNotNull(os);
+    os.write(testData.getBytes());
+    os.close();
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    minicluster.shutdownMiniCluster();
+  }
+
+  private static String getUrl(String path) {
+    return "http://localhost:" + minicluster.getGatewayPort() + path +
+      "?user.name=" + ownerUser.getShortUserName();
+  }
+
+  /**
+   * Execute the request and return the NameNode calls it made
+   */
+  private static int countCalls(HttpMethod method, int expectedCode) {
+    try {
+      CountingFileSystem.reset();
+      int code = minicluster.getClient().executeMethod(method);
+      // Read the whole response, the request is only done after that
+      method.getResponseBody();
+      assertEquals("Expected " + expectedCode + " response, got " + code,
+        expectedCode, code);
+      int calls = CountingFileSystem.getCalls();
+      LOG.info(method.getName() + " " + method.getPath() + " made " + calls +
+        " NameNode calls");
+      return calls;
+    } catch (IOException e) {
+      LOG.error(method.getName() + " failed", e);
+      fail(method.getName() + " failed with an exception");
+      return -1;
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  private static void assertBudget(String what, int budget, int calls) {
+    assertTrue(what + " made " + calls + " NameNode calls, budget is " +
+      budget, calls <= budget);
+  }
+
+  @Test
+  public void testGet() {
+    assertBudget("GET", GET_BUDGET,
+      countCalls(new GetMethod(getUrl("/test/file")), 200));
+  }
+
+  @Test
+  public void testGetCached() {
+    countCalls(new GetMethod(getUrl("/test/file")), 200);
+    assertBudget("GET with cached status", GET_CACHED_BUDGET,
+      countCalls(new GetMethod(getUrl("/test/file")), 200));
+  }
+
+  @Test
+  public void testGetRange() {
+    GetMethod get = new GetMethod(getUrl("/test/file"));
+    get.setRequestHeader("Range", "bytes=5-9");
+    assertBudget("GET of a range", GET_BUDGET, countCalls(get, 206));
+  }
+
+  @Test
+  public void testGetIfRange() throws IOException {
+    HeadMethod head = new HeadMethod(getUrl("/test/file"));
+    String modified;
+    try {
+      assertEquals(200, minicluster.getClient().executeMethod(head));
+      modified = head.getResponseHeader("Last-Modified").getValue();
+    } finally {
+      head.releaseConnection();
+    }
+    GetMethod get = new GetMethod(getUrl("/test/file"));
+    get.setRequestHeader("Range", "bytes=5-9");
+    get.setRequestHeader("If-Range", modified);
+    assertBudget("GET of a range with If-Range", GET_BUDGET,
+      countCalls(get, 206));
+    // A stale validator gets the whole file
+    get = new GetMethod(getUrl("/test/file"));
+    get.setRequestHeader("Range", "bytes=5-9");
+    get.setRequestHeader("If-Range", "Thu, 01 Jan 1970 00:00:00 GMT");
+    countCalls(get, 200);
+  }
+
+  @Test
+  public void testGetDeletedBehindGateway() throws Exception {
+    countCalls(new GetMethod(getUrl("/test/gone")), 200);
+    ownerUser.doAs(new PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        assertTrue(minicluster.getTestFileSystem()
+          .delete(new Path("/test/gone"), false));
+        return null;
+      }
+    });
+    // The cached status is stale, the open finds no file
+    countCalls(new GetMethod(getUrl("/test/gone")), 404);
+  }
+
+  @Test
+  public void testGetAfterCollectionMoved() {
+    countCalls(new GetMethod(getUrl("/test/movedir/file")), 200);
+    countCalls(new MoveMethod(getUrl("/test/movedir"),
+      getUrl("/test/moveddir"), true), 201);
+    countCalls(new GetMethod(getUrl("/test/movedir/file")), 404);
+    countCalls(new GetMethod(getUrl("/test/moveddir/file")), 200);
+  }
+
+  @Test
+  public void testHead() {
+    assertBudget("HEAD", HEAD_BUDGET,
+      countCalls(new HeadMethod(getUrl("/test/file")), 200));
+  }
+
+  @Test
+  public void testPropfindDepth0() throws IOException {
+    assertBudget("PROPFIND depth 0", PROPFIND_0_BUDGET,
+      countCalls(new PropFindMethod(getUrl("/test/file"),
+        DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_0), 207));
+  }
+
+  @Test
+  public void testPropfindDepth1() throws IOException {
+    // The budget must hold whatever the number of children
+    assertBudget("PROPFIND depth 1 on 10 children", PROPFIND_1_BUDGET,
+      countCalls(new PropFindMethod(getUrl("/test/small"),
+        DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_1), 207));
+    assertBudget("PROPFIND depth 1 on 100 children", PROPFIND_1_BUDGET,
+      countCalls(new PropFindMethod(getUrl("/test/large"),
+        DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_1), 207));
+  }
+
+  @Test
+  public void testPropfindDepth1ByName() throws IOException {
+    DavPropertyNameSet names = new DavPropertyNameSet();
+    names.add(DavPropertyName.RESOURCETYPE);
+    names.add(DavPropertyName.GETCONTENTLENGTH);
+    assertBudget("PROPFIND depth 1 by name on 100 children",
+      PROPFIND_1_BUDGET, countCalls(new PropFindMethod(getUrl("/test/large"),
+        names, DavConstants.DEPTH_1), 207));
+  }
+
+  @Test
+  public void testPut() {
+    PutMethod put = new PutMethod(getUrl("/test/put"));
+    put.setRequestEntity(new ByteArrayRequestEntity(testData.getBytes()));
+    assertBudget("PUT", PUT_BUDGET, countCalls(put, 201));
+  }
+
+  @Test
+  public void testMkcol() {
+    assertBudget("MKCOL", MKCOL_BUDGET,
+      countCalls(new MkColMethod(getUrl("/test/mkcol")), 201));
+  }
+
+  @Test
+  public void testDelete() {
+    assertBudget("DELETE", DELETE_BUDGET,
+      countCalls(new DeleteMethod(getUrl("/test/delete")), 204));
+  }
+
+  @Test
+  public void testMove() {
+    assertBudget("MOVE", MOVE_BUDGET,
+      countCalls(new MoveMethod(getUrl("/test/move"),
+        getUrl("/test/moved"), true), 201));
+  }
+
+  @Test
+  public void testCopy() {
+    assertBudget("COPY", COPY_BUDGET,
+      countCalls(new CopyMethod(getUrl("/test/file"),
+        getUrl("/test/copied"), true), 201));
+  }
+
+}
@@ -0,0 +1,510 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trendmicro.hdfs.webdav.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.client.methods.CopyMethod;
+import org.apache.jackrabbit.webdav.client.methods.MoveMethod;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.client.methods.PutMethod;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.trendmicro.hdfs.webdav.HDFSWebDAVServlet;
+import com.trendmicro.hdfs.webdav.Main;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * End to end load benchmark against a MiniDFSCluster and the gateway in
+ * Jetty, on one machine and fully offline. Sweeps concurrency and payload
+ * size over GET, PUT, PROPFIND at each depth, COPY and MOVE, and writes
+ * throughput, latency percentiles and NameNode calls per operation as JSON
+ * so runs can be compared across commits.
+ * <p>
+ * Not part of the regular test run. Run with <code>mvn test -Pbenchmark</code>,
+ * optionally with <code>-Dbenchmark.requests</code>,
+ * <code>-Dbenchmark.concurrency</code> (e.g. 1,4,16),
+ * <code>-Dbenchmark.payloads</code> (bytes, e.g. 1024,1048576),
+ * <code>-Dbenchmark.label</code> and <code>-Dbenchmark.output</code>.
+ * <code>-Dbenchmark.thread.mode=virtual</code> serves requests on virtual
+ * threads instead of the pool, for comparing the two modes.
+ * <code>-Dbenchmark.sessions=true</code> serves with servlet sessions
+ * enabled, for comparing the heap held per idle client.
+ */
+public class WebDAVLoadBenchmark {
+
+  private static final Log LOG = LogFactory.getLog(WebDAVLoadBenchmark.class);
+
+  private static final int REQUESTS =
+    Integer.getInteger("benchmark.requests", 400);
+  private static final int[] CONCURRENCY =
+    parseInts(System.getProperty("benchmark.concurrency", "1,4,16"));
+  private static final int[] PAYLOADS =
+    parseInts(System.getProperty("benchmark.payloads", "1024,65536,1048576"));
+  private static final String OUTPUT = System.getProperty("benchmark.output",
+    "target/benchmark/webdav-load.json");
+  private static final String LABEL = System.getProperty("benchmark.label",
+    "");
+  private static final String THREAD_MODE =
+    System.getProperty("benchmark.thread.mode", "pooled");
+  private static final boolean SESSIONS =
+    Boolean.getBoolean("benchmark.sessions");
+  private static final int IDLE_CLIENTS =
+    Integer.getInteger("benchmark.idle.clients", 1000);
+
+  private static final int GET_FILES = 16;
+  private static final int TREE_DIRS = 10;
+  private static final int TREE_FILES = 10;
+  private static final int DIR_ENTRIES = 100;
+
+  private static MiniClusterTestUtil minicluster = new MiniClusterTestUtil();
+  private static UserGroupInformation ownerUser =
+    UserGroupInformation.createUserForTesting("owner",
+      new String[] { "users" });
+  private static UserGroupInformation gatewayUser =
+    UserGroupInformation.createUserForTesting("gateway",
+      new String[] { "users" });
+  private static HttpClient client;
+  private static List<String> results = new ArrayList<String>();
+
+  private static int[] parseInts(String s) {
+    String[] parts = s.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  private static void createFile(FileSystem fs, Path path, int size)
+      throws IOException {
+    FSDataOutputStream out = fs.create(path, true);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+  }
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Configuration conf = minicluster.getConfiguration();
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".groups",
+        "users");
+    conf.set("hadoop.proxyuser." +
+      UserGroupInformation.getCurrentUser().getShortUserName() + ".hosts",
+        "localhost");
+    conf.set("hadoop.webdav.authentication.type", "simple");
+    conf.setBoolean("hadoop.webdav.authentication.simple.anonymous.allowed",
+      true);
+    conf.set(Main.THREAD_MODE_KEY, THREAD_MODE);
+    conf.setBoolean(Main.SERVER_PREFIX + "sessions", SESSIONS);
+
+    minicluster.startMiniCluster(gatewayUser);
+    // Debug logging would dominate the measurements
+    for (Logger log: new Logger[] {
+        Logger.getLogger("com.trendmicro"),
+        Logger.getLogger("org.mortbay"),
+        Logger.getLogger("org.apache.hadoop") }) {
+      log.setLevel(Level.WARN);
+    }
+    LOG.info("Gateway started on port " + minicluster.getGatewayPort());
+
+    FsPermission.setUMask(conf, new FsPermission((short)0));
+    FileSystem fs = minicluster.getTestFileSystem();
+    Path bench = new Path("/bench");
+    assertTrue(fs.mkdirs(bench));
+    fs.setOwner(bench, ownerUser.getShortUserName(),
+      ownerUser.getGroupNames()[0]);
+
+    ownerUser.doAs(new java.security.PrivilegedExceptionAction<Void>() {
+      public Void run() throws Exception {
+        FileSystem fs = minicluster.getTestFileSystem();
+        for (int size: PAYLOADS) {
+          for (int i = 0; i < GET_FILES; i++) {
+            createFile(fs, new Path("/bench/get/" + size + "/f-" + i), size);
+          }
+          fs.mkdirs(new Path("/bench/put/" + size));
+        }
+        for (int i = 0; i < DIR_ENTRIES; i++) {
+          createFile(fs, new Path("/bench/dir/f-" + i), 1024);
+        }
+        for (int i = 0; i < TREE_DIRS; i++) {
+          for (int j = 0; j < TREE_FILES; j++) {
+            createFile(fs, new Path("/bench/tree/d-" + i + "/f-" + j), 1024);
+          }
+        }
+        fs.mkdirs(new Path("/bench/copy"));
+        fs.mkdirs(new Path("/bench/move"));
+        return null;
+      }
+    });
+
+    client = minicluster.getClient();
+  }
+
+  @AfterClass
+  public static void cleanup() throws IOException {
+    writeResults();
+    minicluster.shutdownMiniCluster();
+  }
+
+  private static String getUrl(String path) {
+    return "http://localhost:" + minicluster.getGatewayPort() + path +
+      "?user.name=" + ownerUser.getShortUserName();
+  }
+
+  /** One benchmarked operation, invoked with a worker and sequence number */
+  private interface Operation {
+    HttpMethod create(int worker, int n) throws IOException;
+  }
+
+  private static Histogram getNameNodeCalls(String method) {
+    return (Histogram)Metrics.defaultRegistry().allMetrics().get(
+      new MetricName(HDFSWebDAVServlet.class, "namenode-calls", method));
+  }
+
+  private static double percentile(long[] sorted, double q) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    int idx = (int)Math.ceil(q * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1e6;
+  }
+
+  private static void run(final String name, final String method,
+      int concurrency, int payload, final Operation op) throws Exception {
+    final int perWorker = Math.max(1, REQUESTS / concurrency);
+    final long[] latencies = new long[perWorker * concurrency];
+    final AtomicInteger errors = new AtomicInteger();
+
+    // Warm up connections and code paths outside the measurement
+    for (int i = 0; i < Math.min(concurrency, 4); i++) {
+      execute(op.create(i, -1 - i), errors);
+    }
+    errors.set(0);
+
+    Histogram nn = getNameNodeCalls(method);
+    long nnSumBefore = nn != null ? (long)nn.sum() : 0;
+    long nnCountBefore = nn != null ? nn.count() : 0;
+
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    long start = System.nanoTime();
+    for (int w = 0; w < concurrency; w++) {
+      final int worker = w;
+      futures.add(pool.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          for (int n = 0; n < perWorker; n++) {
+            HttpMethod m = op.create(worker, n);
+            long t = System.nanoTime();
+            execute(m, errors);
+            latencies[worker * perWorker + n] = System.nanoTime() - t;
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> f: futures) {
+      f.get();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+
+    nn = getNameNodeCalls(method);
+    long nnCalls = nn != null ? (long)nn.sum() - nnSumBefore : 0;
+    long nnRequests = nn != null ? nn.count() - nnCountBefore : 0;
+
+    Arrays.sort(latencies);
+    String result = String.format(
+      "{\"op\":\"%s\",\"concurrency\":%d,\"payload\":%d,\"requests\":%d," +
+      "\"errors\":%d,\"seconds\":%.3f,\"throughput\":%.1f," +
+      "\"p50_ms\":%.3f,\"p99_ms\":%.3f,\"namenode_calls_per_op\":%.2f}",
+      name, concurrency, payload, latencies.length, errors.get(), seconds,
+      latencies.length / seconds, percentile(latencies, 0.5),
+      percentile(latencies, 0.99),
+      nnRequests > 0 ? (double)nnCalls / nnRequests : 0.0);
+    LOG.info(result);
+    results.add(result);
+  }
+
+  private static void execute(HttpMethod method, AtomicInteger errors) {
+    try {
+      int code = client.executeMethod(method);
+      InputStream in = method.getResponseBodyAsStream();
+      if (in != null) {
+        byte[] buf = new byte[65536];
+        while (in.read(buf) >= 0) { }
+      }
+      if (code >= 400) {
+        errors.incrementAndGet();
+      }
+    } catch (IOException e) {
+      errors.incrementAndGet();
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  private static void writeResults() throws IOException {
+    File file = new File(OUTPUT);
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    PrintWriter out = new PrintWriter(new FileWriter(file));
+    try {
+      out.println("{\"label\":\"" + LABEL.replace("\"", "'") + "\"," +
+        "\"timestamp\":" + System.currentTimeMillis() + "," +
+        "\"java\":\"" + System.getProperty("java.version") + "\"," +
+        "\"threadMode\":\"" + THREAD_MODE + "\"," +
+        "\"sessions\":" + SESSIONS + "," +
+        "\"cpus\":" + Runtime.getRuntime().availableProcessors() + "," +
+        "\"results\":[");
+      for (int i = 0; i < results.size(); i++) {
+        out.println("  " + results.get(i) +
+          (i < results.size() - 1 ? "," : ""));
+      }
+      out.println("]}");
+    } finally {
+      out.close();
+    }
+    LOG.info("Wrote " + results.size() + " results to " +
+      file.getAbsolutePath());
+  }
+
+  @Test
+  public void benchmarkGet() throws Exception {
+    for (final int size: PAYLOADS) {
+      for (int c: CONCURRENCY) {
+        run("GET", "GET", c, size, new Operation() {
+          public HttpMethod create(int worker, int n) {
+            int i = Math.abs(worker * 31 + n) % GET_FILES;
+            return new GetMethod(getUrl("/bench/get/" + size + "/f-" + i));
+          }
+        });
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkPut() throws Exception {
+    for (final int size: PAYLOADS) {
+      final byte[] data = new byte[size];
+      for (int c: CONCURRENCY) {
+        run("PUT", "PUT", c, size, new Operation() {
+          public HttpMethod create(int worker, int n) {
+            PutMethod put = new PutMethod(getUrl("/bench/put/" + size + "/" +
+              worker + "-" + n));
+            put.setRequestEntity(new ByteArrayRequestEntity(data));
+            return put;
+          }
+        });
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkPropfind() throws Exception {
+    for (int c: CONCURRENCY) {
+      run("PROPFIND depth 0", "PROPFIND", c, 0, new Operation() {
+        public HttpMethod create(int worker, int n) throws IOException {
+          return new PropFindMethod(getUrl("/bench/dir/f-" +
+            (Math.abs(n) % DIR_ENTRIES)), DavConstants.PROPFIND_ALL_PROP,
+            DavConstants.DEPTH_0);
+        }
+      });
+      run("PROPFIND depth 1", "PROPFIND", c, DIR_ENTRIES, new Operation() {
+        public HttpMethod create(int worker, int n) throws IOException {
+          return new PropFindMethod(getUrl("/bench/dir"),
+            DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_1);
+        }
+      });
+      run("PROPFIND depth infinity", "PROPFIND", c, TREE_DIRS * TREE_FILES,
+          new Operation() {
+        public HttpMethod create(int worker, int n) throws IOException {
+          return new PropFindMethod(getUrl("/bench/tree"),
+            DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_INFINITY);
+        }
+      });
+    }
+  }
+
+  /**
+   * Many small requests with and without connection reuse, to show what a
+   * new connection per request costs
+   */
+  @Test
+  public void benchmarkConnectionReuse() throws Exception {
+    final int size = PAYLOADS[0];
+    for (int c: CONCURRENCY) {
+      for (final boolean reuse: new boolean[] { true, false }) {
+        String suffix = reuse ? " keep-alive" : " close";
+        run("GET small" + suffix, "GET", c, size, new Operation() {
+          public HttpMethod create(int worker, int n) {
+            int i = Math.abs(worker * 31 + n) % GET_FILES;
+            GetMethod get =
+              new GetMethod(getUrl("/bench/get/" + size + "/f-" + i));
+            if (!reuse) {
+              get.setRequestHeader("Connection", "close");
+            }
+            return get;
+          }
+        });
+        run("PROPFIND depth 0" + suffix, "PROPFIND", c, 0, new Operation() {
+          public HttpMethod create(int worker, int n) throws IOException {
+            PropFindMethod propfind = new PropFindMethod(
+              getUrl("/bench/dir/f-" + (Math.abs(n) % DIR_ENTRIES)),
+              DavConstants.PROPFIND_ALL_PROP, DavConstants.DEPTH_0);
+            if (!reuse) {
+              propfind.setRequestHeader("Connection", "close");
+            }
+            return propfind;
+          }
+        });
+      }
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Heap held per idle client: each client makes one request and then
+   * keeps its connection open. Client and server share the heap, so
+   * compare runs with and without sessions rather than reading the figure
+   * as the server's alone.
+   */
+  @Test
+  public void benchmarkIdleClientHeap() throws Exception {
+    List<Socket> sockets = new ArrayList<Socket>();
+    long before = usedHeap();
+    try {
+      for (int i = 0; i < IDLE_CLIENTS; i++) {
+        Socket socket = new Socket("localhost", minicluster.getGatewayPort());
+        sockets.add(socket);
+        OutputStream out = socket.getOutputStream();
+        out.write(("PROPFIND /bench/dir?user.name=" +
+          ownerUser.getShortUserName() + " HTTP/1.1\r\n" +
+          "Host: localhost\r\nDepth: 0\r\nContent-Length: 0\r\n\r\n")
+          .getBytes("US-ASCII"));
+        out.flush();
+        // Read the status line, the connection then stays idle
+        InputStream in = socket.getInputStream();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') { }
+      }
+      long after = usedHeap();
+      String result = String.format(
+        "{\"op\":\"idle clients\",\"clients\":%d," +
+        "\"heap_bytes\":%d,\"heap_bytes_per_client\":%.1f}",
+        IDLE_CLIENTS, after - before,
+        (double)(after - before) / IDLE_CLIENTS);
+      LOG.info(result);
+      results.add(result);
+    } finally {
+      for (Socket socket: sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkCopy() throws Exception {
+    for (int c: CONCURRENCY) {
+      final int size = PAYLOADS[0];
+      run("COPY", "COPY", c, size, new Operation() {
+        public HttpMethod create(int worker, int n) {
+          return new CopyMethod(getUrl("/bench/get/" + size + "/f-0"),
+            getUrl("/bench/copy/" + worker + "-" + n), true);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void benchmarkMove() throws Exception {
+    for (final int c: CONCURRENCY) {
+      // Each worker bounces its own file between two names
+      ownerUser.doAs(new java.security.PrivilegedExceptionAction<Void>() {
+        public Void run() throws Exception {
+          FileSystem fs = minicluster.getTestFileSystem();
+          fs.delete(new Path("/bench/move"), true);
+          for (int w = 0; w < c; w++) {
+            createFile(fs, new Path("/bench/move/" + w + "-a"), 1024);
+          }
+          return null;
+        }
+      });
+      run("MOVE", "MOVE", c, 1024, new Operation() {
+        public HttpMethod create(int worker, int n) {
+          // Warm up requests use negative sequence numbers, keep them in
+          // step with the measured ones
+          boolean even = (n & 1) == 0;
+          String from = "/bench/move/" + worker + (even ? "-a" : "-b");
+          String to = "/bench/move/" + worker + (even ? "-b" : "-a");
+          return new MoveMethod(getUrl(from), getUrl(to), true);
+        }
+      });
+    }
+  }
+
+}